@@ -6,11 +6,11 @@
 
 package SetClient;
 
-import java.io.BufferedReader;
-import java.io.DataInputStream;
+import SetProtocol.BinaryFrames;
+import java.io.BufferedInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.net.Socket;
 
 /**
@@ -21,17 +21,67 @@ public class SetClient {
   
   boolean listening;
   final Socket socket;
-  final BufferedReader istream;
+  final InputStream istream;
   final DataOutputStream ostream;
-  
+  //framing of what we send and what we read, see BinaryFrames
+  boolean binaryOut;
+  boolean binaryIn;
   
   public SetClient() throws IOException {
+    this(false);
+  }
+  
+  //with binaryFraming the client asks for binary frames right away; the
+  //server switches its reader on the request, so we can send binary
+  //immediately, but keep reading text until the server's B~1 answer
+  public SetClient(boolean binaryFraming) throws IOException {
     //replace with actual server connection
     listening = true;
     socket = new Socket("127.0.0.1", 1111);
-    istream = new BufferedReader(
-            new InputStreamReader(socket.getInputStream()));
+    istream = new BufferedInputStream(socket.getInputStream());
     ostream = new DataOutputStream(socket.getOutputStream());
+    if (binaryFraming) {
+      ostream.writeBytes(BinaryFrames.NEGOTIATE + "\n");
+      ostream.flush();
+      binaryOut = true;
+    }
+  }
+  
+  public void send(String message) throws IOException {
+    if (binaryOut)
+      ostream.write(BinaryFrames.encode(message));
+    else
+      ostream.writeBytes(message + "\n");
+    ostream.flush();
+  }
+  
+  //the next message from the server as text, whichever framing it came in,
+  //null once the connection is closed
+  String readMessage() throws IOException {
+    while (true) {
+      if (binaryIn)
+        return BinaryFrames.readFrame(istream);
+      String line = readLine();
+      if (line == null || !line.startsWith("B~"))
+        return line;
+      //the answer to our request, B~0 would mean it was refused
+      binaryIn = line.equals(BinaryFrames.NEGOTIATE);
+      binaryOut = binaryIn;
+    }
+  }
+  
+  private String readLine() throws IOException {
+    StringBuilder line = new StringBuilder();
+    int b;
+    while ((b = istream.read()) != '\n') {
+      if (b < 0)
+        return null;
+      line.append((char) b);
+    }
+    int length = line.length();
+    if (length > 0 && line.charAt(length - 1) == '\r')
+      line.setLength(length - 1);
+    return line.toString();
   }
   
   /*
@@ -40,6 +90,14 @@ public class SetClient {
      G~Y yes set made
      G~F game over
      G~N no set wasn't made
+     G~O claim was made on an outdated board (or lost to an earlier one),
+         not scored; claims echo the board's sequence: S~c1~c2~c3~sequence
+        (G~flag~cards~scores~sequence, a full board)
+     G~D~flag~sequence~slot card...~player score...  only what changed
+        since the board message before it (card -1: slot emptied), one
+        player score pair per player whose score changed (several when a
+        ticking room answers a batch of claims); after a gap in the
+        sequence ignore deltas until the next full board
      G~R reset ready button (shouldn't be able to press if already pressed)
      G~U~[game room userlist string] update names+scores
           (whenever a name is added or removed)
@@ -54,12 +112,22 @@ public class SetClient {
         :Game Chat
    * P~A~name :update players in lobby table/ 
      P~R~name: removes name from lobby table
-   * U~A~[room number]~[room name]~[current numPlayers]~[max players]~[status]
-   * U~R~[room number]
+   * U~S~version~[room]~[room]... :every open room, sent on login and on
+        leaving a game room; no U~D is sent while in a game room
+     U~D~version~A~[room]~R~[room number]... :rooms added or changed (A)
+        and closed (R) since the version before, several changes to one
+        room are sent as one; versions go up by one per U~D
+     [room] is [room number]~[room name]~[current numPlayers]~[max players]
+        ~[status], status is Inactive, Active or Complete
+   * B~1 :switched to binary frames (B~0: refused, still text)
    */
   public void runClient() throws IOException {
     while (listening) {
-      String incomingMessage = istream.readLine();
+      String incomingMessage = readMessage();
+      if (incomingMessage == null) {
+        listening = false;
+        break;
+      }
       String [] messagePieces = incomingMessage.split("~");
       switch (messagePieces[0].charAt(0)) {
         //cases to switch on
@@ -0,0 +1,564 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package SetClient.src.loadtest;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import SetProtocol.BinaryFrames;
+import java.util.HashSet;
+import java.util.SplittableRandom;
+
+/**
+ * One simulated player on its own connection, driven by a BotLoop
+ * Registers (or logs in if the name is taken), then meets the other bots of
+ * its group in a room: the group's leader creates the room once every
+ * member is online, the members join it when they see it in the lobby's
+ * U~S snapshot or a U~D delta.
+ * Once the room is full every bot readies up and, while the game runs,
+ * claims a set found on the board it keeps from the G~ snapshots and
+ * G~D deltas at claimRate claims per second, an invalidRatio share of them
+ * invalid. After a gap in the board sequence it ignores deltas until the
+ * next snapshot.
+ * When a game ends the bots ready up again for the next one
+ * With binary set the bot asks for binary frames before registering
+ */
+public class Bot {
+  
+  enum State {
+    CONNECTING,
+    CONNECTED,
+    REGISTERING,
+    LOBBY,
+    JOINING,
+    IN_ROOM,
+    READY,
+    PLAYING,
+    GAME_OVER,
+    CLOSED
+  }
+  
+  static final String PASSWORD = "loadtest";
+  static final int MAX_LINE = 1 << 20;
+  
+  final String name;
+  final boolean leader;
+  final String roomName;
+  final int groupSize;
+  //names of the group's other members the leader hasn't seen online yet
+  final HashSet<String> awaitedMembers;
+  final BotLoop loop;
+  final double claimRate;
+  final double invalidRatio;
+  final boolean binary;
+  final SplittableRandom random;
+  
+  State state;
+  SocketChannel channel;
+  SelectionKey key;
+  ByteBuffer in;
+  ByteBuffer out;
+  boolean binaryOut;
+  boolean binaryIn;
+  
+  //the one request waiting for its reply, null if none
+  RequestType pending;
+  long pendingSince;
+  int roomNumber;
+  int roomPlayers;
+  //of the last lobby snapshot or delta, -1 before the snapshot
+  int lobbyVersion;
+  long nextClaimAt;
+  
+  //card by slot, -1 for an empty slot, as of board message boardSequence
+  final boolean[] onTable;
+  final int[] board;
+  int boardSize;
+  //-1 while waiting for a snapshot
+  int boardSequence;
+  
+  public Bot(String name, boolean leader, String roomName, int groupSize,
+             HashSet<String> awaitedMembers, BotLoop loop, double claimRate,
+             double invalidRatio, boolean binary, SplittableRandom random) {
+    this.name = name;
+    this.leader = leader;
+    this.roomName = roomName;
+    this.groupSize = groupSize;
+    this.awaitedMembers = awaitedMembers;
+    this.loop = loop;
+    this.claimRate = claimRate;
+    this.invalidRatio = invalidRatio;
+    this.binary = binary;
+    this.random = random;
+    state = State.CONNECTING;
+    in = ByteBuffer.allocate(8192);
+    out = ByteBuffer.allocate(256);
+    out.flip();
+    roomNumber = -1;
+    lobbyVersion = -1;
+    onTable = new boolean[81];
+    board = new int[81];
+  }
+  
+  void connect(Selector selector, InetSocketAddress server)
+          throws IOException {
+    channel = SocketChannel.open();
+    channel.configureBlocking(false);
+    channel.setOption(java.net.StandardSocketOptions.TCP_NODELAY, true);
+    if (channel.connect(server)) {
+      key = channel.register(selector, SelectionKey.OP_READ, this);
+      onConnected(System.nanoTime());
+    } else {
+      key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+    }
+  }
+  
+  void handleConnect(long now) {
+    try {
+      if (channel.finishConnect()) {
+        key.interestOps(SelectionKey.OP_READ);
+        onConnected(now);
+      }
+    } catch (IOException except) {
+      System.err.println(name + " failed to connect: " + except.getMessage());
+      close();
+    }
+  }
+  
+  private void onConnected(long now) {
+    loop.generator.connected.increment();
+    state = State.CONNECTED;
+  }
+  
+  void handleRead(long now) {
+    int read;
+    try {
+      read = channel.read(in);
+    } catch (IOException except) {
+      read = -1;
+    }
+    if (read < 0) {
+      System.err.println(name + " was disconnected");
+      close();
+      return;
+    }
+    loop.generator.receivedBytes.add(read);
+    in.flip();
+    byte[] bytes = in.array();
+    int start = in.position();
+    while (start < in.limit()) {
+      String message;
+      if (binaryIn) {
+        int header = BinaryFrames.headerLength(bytes, start, in.limit());
+        if (header == 0)
+          break;
+        int length = header < 0 ? -1 : BinaryFrames.readLength(bytes, start);
+        if (length < 0 || length > MAX_LINE) {
+          System.err.println(name + " got a malformed frame");
+          close();
+          return;
+        }
+        if (in.limit() - start - header < length)
+          break;
+        message = BinaryFrames.decode(bytes, start + header, length);
+        start += header + length;
+      } else {
+        int i = start;
+        while (i < in.limit() && bytes[i] != '\n')
+          ++i;
+        if (i == in.limit())
+          break;
+        int end = i > start && bytes[i - 1] == '\r' ? i - 1 : i;
+        message = new String(bytes, start, end - start,
+                StandardCharsets.ISO_8859_1);
+        start = i + 1;
+        if (message.startsWith("B~")) {
+          binaryIn = message.equals(BinaryFrames.NEGOTIATE);
+          continue;
+        }
+      }
+      if (message == null) {
+        System.err.println(name + " got a malformed frame");
+        close();
+        return;
+      }
+      loop.generator.received.increment();
+      handleLine(message, now);
+      if (state == State.CLOSED)
+        return;
+    }
+    in.position(start);
+    in.compact();
+    if (!in.hasRemaining()) {
+      if (in.capacity() >= MAX_LINE) {
+        System.err.println(name + " got a line over " + MAX_LINE + " bytes");
+        close();
+        return;
+      }
+      ByteBuffer bigger = ByteBuffer.allocate(in.capacity() * 2);
+      in.flip();
+      bigger.put(in);
+      in = bigger;
+    }
+  }
+  
+  void handleWrite() {
+    try {
+      channel.write(out);
+      if (!out.hasRemaining())
+        key.interestOps(SelectionKey.OP_READ);
+    } catch (IOException except) {
+      close();
+    }
+  }
+  
+  //called by the loop every few milliseconds
+  void tick(long now) {
+    //nobody registers until every bot is connected, so that each bot is
+    //there to see the P~A broadcasts of the rest of its group
+    if (state == State.CONNECTED && loop.generator.registering) {
+      state = State.REGISTERING;
+      if (binary) {
+        //the server reads binary from the byte after the request on
+        send(BinaryFrames.NEGOTIATE, null, now);
+        binaryOut = true;
+      }
+      send("R~" + name + "~" + PASSWORD, RequestType.REGISTER, now);
+    }
+    if (state == State.PLAYING && pending == null && now >= nextClaimAt)
+      claim(now);
+  }
+  
+  void handleLine(String line, long now) {
+    String [] pieces = line.split("~");
+    if (pieces[0].isEmpty())
+      return;
+    switch (pieces[0].charAt(0)) {
+      case 'P':
+        if (pieces.length == 3 && pieces[1].equals("A"))
+          onOnline(pieces[2], now);
+        break;
+      case 'X':
+        if (state == State.REGISTERING && line.contains("already exists")) {
+          //left over from an earlier run against the same server
+          send("L~" + name + "~" + PASSWORD, RequestType.LOGIN, now);
+        } else {
+          loop.generator.errors.increment();
+          System.err.println(name + " got an error: " + line);
+        }
+        break;
+      case 'U':
+        //U~A~name on its own is someone joining our room
+        if (pieces.length >= 3
+                && (pieces[1].equals("S") || pieces[1].equals("D")))
+          onLobbyMessage(pieces, now);
+        break;
+      case 'J':
+        //J~F or J~I, this group's room is full or already playing
+        finish(RequestType.JOIN_ROOM, now);
+        loop.generator.errors.increment();
+        System.err.println(name + " could not join room " + roomNumber
+                + ": " + line);
+        state = State.LOBBY;
+        break;
+      case 'G':
+        if (pieces.length >= 2)
+          onGameMessage(pieces, now);
+        break;
+      default:
+        break;
+    }
+  }
+  
+  private void onOnline(String username, long now) {
+    if (username.equals(name) && state == State.REGISTERING) {
+      if (!finish(RequestType.REGISTER, now))
+        finish(RequestType.LOGIN, now);
+      state = State.LOBBY;
+      if (!leader && roomNumber >= 0)
+        joinRoom(now);
+    }
+    if (leader)
+      awaitedMembers.remove(username);
+    //wait for the members so the room fills as soon as it is listed
+    if (leader && state == State.LOBBY && awaitedMembers.isEmpty()) {
+      state = State.JOINING;
+      int tick = loop.generator.tickMillis;
+      send("N~" + roomName + "~" + groupSize + (tick > 0 ? "~" + tick : ""),
+              RequestType.CREATE_ROOM, now);
+    }
+  }
+  
+  //U~S~version~room... or U~D~version~A~room...~R~number...
+  //rooms are number~name~numPlayers~max~status
+  private void onLobbyMessage(String [] pieces, long now) {
+    int version = Integer.parseInt(pieces[2]);
+    boolean delta = pieces[1].equals("D");
+    if (delta && version != lobbyVersion + 1) {
+      loop.generator.errors.increment();
+      System.err.println(name + " missed lobby updates before " + version);
+    }
+    lobbyVersion = version;
+    for (int i = 3; i < pieces.length; ) {
+      if (delta && pieces[i++].equals("R")) {
+        ++i;
+        continue;
+      }
+      if (!leader && pieces[i + 1].equals(roomName)) {
+        roomNumber = Integer.parseInt(pieces[i]);
+        if (state == State.LOBBY)
+          joinRoom(now);
+      }
+      i += 5;
+    }
+  }
+  
+  private void joinRoom(long now) {
+    state = State.JOINING;
+    send("J~" + roomNumber, RequestType.JOIN_ROOM, now);
+  }
+  
+  private void onGameMessage(String [] pieces, long now) {
+    switch (pieces[1]) {
+      case "U":
+        //G~U~name~score~name~score...
+        roomPlayers = (pieces.length - 2) / 2;
+        if (state == State.JOINING) {
+          if (!finish(RequestType.CREATE_ROOM, now))
+            finish(RequestType.JOIN_ROOM, now);
+          state = State.IN_ROOM;
+        }
+        if (state == State.IN_ROOM)
+          readyUp(now);
+        break;
+      case "R":
+        //the room was reset, after a game or because someone left
+        if (state == State.GAME_OVER || state == State.READY
+                || state == State.PLAYING) {
+          pending = null;
+          state = State.IN_ROOM;
+          readyUp(now);
+        }
+        break;
+      case "S":
+        finish(RequestType.START_GAME, now);
+        state = State.PLAYING;
+        readBoard(pieces);
+        scheduleClaim(now);
+        break;
+      case "Y":
+      case "N":
+      case "O":
+        if (finishClaim(now))
+          scheduleClaim(now);
+        readBoard(pieces);
+        break;
+      case "D":
+        if (finishClaim(now))
+          scheduleClaim(now);
+        applyDelta(pieces);
+        break;
+      case "F":
+        finishClaim(now);
+        if (state == State.PLAYING) {
+          state = State.GAME_OVER;
+          if (leader)
+            loop.generator.gamesFinished.increment();
+        }
+        break;
+      default:
+        break;
+    }
+  }
+  
+  private void readyUp(long now) {
+    if (roomPlayers == groupSize) {
+      state = State.READY;
+      send("G", RequestType.START_GAME, now);
+    }
+  }
+  
+  private boolean finishClaim(long now) {
+    return finish(RequestType.CLAIM, now)
+            || finish(RequestType.INVALID_CLAIM, now);
+  }
+  
+  //records the latency of the pending request if it is of the given type
+  private boolean finish(RequestType type, long now) {
+    if (pending != type)
+      return false;
+    loop.histograms[type.ordinal()].record(now - pendingSince);
+    pending = null;
+    return true;
+  }
+  
+  //G~flag~cards~scores~sequence, the cards in slot order
+  private void readBoard(String [] pieces) {
+    clearBoard();
+    boardSequence = pieces.length > 4 ? Integer.parseInt(pieces[4]) : -1;
+    if (pieces.length < 3 || pieces[2].isEmpty())
+      return;
+    for (String card : pieces[2].split(" ")) {
+      int c = Integer.parseInt(card);
+      board[boardSize++] = c;
+      onTable[c] = true;
+    }
+  }
+  
+  //G~D~flag~sequence~slot card slot card...~player score
+  private void applyDelta(String [] pieces) {
+    if (pieces.length < 4)
+      return;
+    int sequence = Integer.parseInt(pieces[3]);
+    if (boardSequence < 0 || sequence != boardSequence + 1) {
+      //missed a board message, wait for the next snapshot
+      if (boardSequence >= 0)
+        loop.generator.resyncs.increment();
+      clearBoard();
+      boardSequence = -1;
+      return;
+    }
+    boardSequence = sequence;
+    if (pieces.length < 5 || pieces[4].isEmpty())
+      return;
+    String [] changes = pieces[4].split(" ");
+    for (int i = 0; i + 1 < changes.length; i += 2) {
+      int slot = Integer.parseInt(changes[i]);
+      int card = Integer.parseInt(changes[i + 1]);
+      for (; boardSize <= slot; ++boardSize)
+        board[boardSize] = -1;
+      if (board[slot] >= 0)
+        onTable[board[slot]] = false;
+      board[slot] = card;
+      if (card >= 0)
+        onTable[card] = true;
+    }
+    while (boardSize > 0 && board[boardSize - 1] < 0)
+      --boardSize;
+  }
+  
+  private void clearBoard() {
+    for (int i = 0; i != boardSize; ++i) {
+      if (board[i] >= 0)
+        onTable[board[i]] = false;
+    }
+    boardSize = 0;
+  }
+  
+  //exponential gaps, so claims across many bots arrive as a Poisson process
+  private void scheduleClaim(long now) {
+    double seconds = -Math.log(1 - random.nextDouble()) / claimRate;
+    nextClaimAt = now + (long) (seconds * 1e9);
+  }
+  
+  private void claim(long now) {
+    boolean invalid = random.nextDouble() < invalidRatio;
+    for (int i = 0; i < boardSize; ++i) {
+      for (int j = i + 1; j < boardSize; ++j) {
+        int a = board[i];
+        int b = board[j];
+        if (a < 0 || b < 0)
+          continue;
+        int c = third(a, b);
+        if (!invalid && onTable[c]) {
+          send("S~" + a + "~" + b + "~" + c + "~" + boardSequence,
+                  RequestType.CLAIM, now);
+          return;
+        }
+        if (invalid) {
+          //any other card on the table makes a wrong set with a and b
+          for (int k = 0; k < boardSize; ++k) {
+            int d = board[k];
+            if (d >= 0 && d != a && d != b && d != c) {
+              send("S~" + a + "~" + b + "~" + d + "~" + boardSequence,
+                      RequestType.INVALID_CLAIM, now);
+              return;
+            }
+          }
+        }
+      }
+    }
+    //nothing to claim on this board, wait for the next one
+    scheduleClaim(now);
+  }
+  
+  //the card completing a set with a and b: for each of the four base 3
+  //digits the three cards' digits sum to a multiple of 3
+  static int third(int a, int b) {
+    int c = 0;
+    for (int place = 27; place != 0; place /= 3) {
+      int da = a / place % 3;
+      int db = b / place % 3;
+      c += ((6 - da - db) % 3) * place;
+    }
+    return c;
+  }
+  
+  void send(String line, RequestType type, long now) {
+    if (state == State.CLOSED)
+      return;
+    if (type != null) {
+      pending = type;
+      pendingSince = now;
+    }
+    byte[] bytes = binaryOut ? BinaryFrames.encode(line)
+            : (line + "\n").getBytes(StandardCharsets.ISO_8859_1);
+    out.compact();
+    if (out.remaining() < bytes.length) {
+      ByteBuffer bigger = ByteBuffer.allocate(
+              Math.max(out.capacity() * 2, out.position() + bytes.length));
+      out.flip();
+      bigger.put(out);
+      out = bigger;
+    }
+    out.put(bytes);
+    out.flip();
+    loop.generator.sent.increment();
+    loop.generator.sentBytes.add(bytes.length);
+    try {
+      channel.write(out);
+      if (out.hasRemaining())
+        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    } catch (IOException except) {
+      close();
+    }
+  }
+  
+  void close() {
+    if (state == State.CLOSED)
+      return;
+    if (state != State.CONNECTING)
+      loop.generator.connected.decrement();
+    loop.generator.errors.increment();
+    state = State.CLOSED;
+    if (channel == null)
+      return;
+    try {
+      channel.close();
+    } catch (IOException except) {
+      //closing anyway
+    }
+  }
+  
+  //closing at the end of a run, not an error
+  void shutdown() {
+    if (state == State.CLOSED)
+      return;
+    state = State.CLOSED;
+    if (channel == null)
+      return;
+    try {
+      channel.close();
+    } catch (IOException except) {
+      //closing anyway
+    }
+  }
+}
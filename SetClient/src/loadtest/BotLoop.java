@@ -0,0 +1,94 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package SetClient.src.loadtest;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * One thread driving the connections of many Bots with a selector
+ * Bots and histograms are only touched from this thread, the generator
+ * reads the histograms after the loop has finished
+ */
+public class BotLoop extends Thread {
+  
+  static final long TICK_MILLIS = 2;
+  
+  final LoadGenerator generator;
+  final InetSocketAddress server;
+  final Selector selector;
+  final List<Bot> bots;
+  final LatencyHistogram[] histograms;
+  
+  public BotLoop(int loopID, LoadGenerator generator,
+                 InetSocketAddress server) throws IOException {
+    super("BotLoop: " + loopID);
+    this.generator = generator;
+    this.server = server;
+    selector = Selector.open();
+    bots = new ArrayList<>();
+    histograms = new LatencyHistogram[RequestType.values().length];
+    for (int i = 0; i != histograms.length; ++i)
+      histograms[i] = new LatencyHistogram();
+  }
+  
+  //only before the loop is started
+  void addBot(Bot bot) {
+    bots.add(bot);
+  }
+  
+  @Override
+  public void run() {
+    for (Bot bot : bots) {
+      try {
+        bot.connect(selector, server);
+      } catch (IOException except) {
+        System.err.println(bot.name + " failed to connect: "
+                + except.getMessage());
+      }
+    }
+    while (generator.running) {
+      try {
+        selector.select(TICK_MILLIS);
+      } catch (IOException except) {
+        System.err.println("Selector failure in " + getName());
+        break;
+      }
+      long now = System.nanoTime();
+      Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+      while (keys.hasNext()) {
+        SelectionKey key = keys.next();
+        keys.remove();
+        Bot bot = (Bot) key.attachment();
+        if (!key.isValid())
+          continue;
+        if (key.isConnectable())
+          bot.handleConnect(now);
+        else {
+          if (key.isReadable())
+            bot.handleRead(now);
+          if (key.isValid() && key.isWritable())
+            bot.handleWrite();
+        }
+      }
+      for (Bot bot : bots)
+        bot.tick(now);
+    }
+    for (Bot bot : bots)
+      bot.shutdown();
+    try {
+      selector.close();
+    } catch (IOException except) {
+      System.err.println("Failed to close the selector of " + getName());
+    }
+  }
+}
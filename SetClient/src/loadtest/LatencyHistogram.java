@@ -0,0 +1,82 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package SetClient.src.loadtest;
+
+/**
+ * Log-linear histogram of latencies in microseconds
+ * Exact below 32us, above that each power of two is split into 16 buckets,
+ * so a reported percentile is within about 6% of the true value
+ * Not thread safe, each BotLoop keeps its own and they are merged at the end
+ */
+public class LatencyHistogram {
+  
+  static final int LINEAR = 32;
+  static final int SUB_BUCKETS = 16;
+  static final int SUB_BITS = 4;
+  static final int NUM_BUCKETS = LINEAR + (63 - 5) * SUB_BUCKETS;
+  
+  final long[] counts = new long[NUM_BUCKETS];
+  long count;
+  long sum;
+  long max;
+  
+  public void record(long nanos) {
+    long micros = Math.max(0, nanos / 1000);
+    ++counts[bucketOf(micros)];
+    ++count;
+    sum += micros;
+    max = Math.max(max, micros);
+  }
+  
+  public void add(LatencyHistogram other) {
+    for (int i = 0; i != NUM_BUCKETS; ++i)
+      counts[i] += other.counts[i];
+    count += other.count;
+    sum += other.sum;
+    max = Math.max(max, other.max);
+  }
+  
+  public long getCount() {
+    return count;
+  }
+  
+  public double getMean() {
+    return count == 0 ? 0 : (double) sum / count;
+  }
+  
+  public long getMax() {
+    return max;
+  }
+  
+  //upper bound of the bucket holding the given percentile, in microseconds
+  public long getPercentile(double percentile) {
+    long rank = (long) Math.ceil(count * percentile / 100);
+    long seen = 0;
+    for (int i = 0; i != NUM_BUCKETS; ++i) {
+      seen += counts[i];
+      if (seen >= Math.max(1, rank))
+        return Math.min(max, upperBound(i));
+    }
+    return max;
+  }
+  
+  static int bucketOf(long micros) {
+    if (micros < LINEAR)
+      return (int) micros;
+    int exponent = 63 - Long.numberOfLeadingZeros(micros);
+    int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+    return LINEAR + (exponent - 5) * SUB_BUCKETS + sub;
+  }
+  
+  static long upperBound(int bucket) {
+    if (bucket < LINEAR)
+      return bucket;
+    int exponent = (bucket - LINEAR) / SUB_BUCKETS + 5;
+    long sub = (bucket - LINEAR) % SUB_BUCKETS;
+    return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+  }
+}
@@ -0,0 +1,187 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package SetClient.src.loadtest;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Headless load test for SetServer: opens one connection per Bot, groups
+ * them into rooms and has them play games, then reports throughput and
+ * latency percentiles per request type
+ * Run it against a server using the in-memory store, e.g.
+ *   SetServerMain selector disconnect memory
+ * usage: LoadGenerator [-host 127.0.0.1] [-port 10000] [-bots 100]
+ *        [-room 4] [-rate 1.0] [-invalid 0.1] [-duration 30]
+ *        [-loops cores] [-prefix bot] [-binary true] [-tick 0]
+ * -room is the number of bots per room, -rate the claims per second each
+ * bot makes while a game runs, -invalid the share of those claims that are
+ * not a set, -duration the seconds to run once every bot is connected,
+ * -binary has the bots use binary frames instead of text lines, -tick
+ * makes the rooms resolve their claims in batches every that many ms
+ */
+public class LoadGenerator {
+  
+  //how long to wait for every bot to connect before starting anyway
+  static final long CONNECT_TIMEOUT_MILLIS = 30000;
+  //time for the server to take the last connections off its accept queue
+  static final long SETTLE_MILLIS = 1000;
+  
+  volatile boolean running;
+  volatile boolean registering;
+  final LongAdder connected = new LongAdder();
+  final LongAdder sent = new LongAdder();
+  final LongAdder received = new LongAdder();
+  final LongAdder sentBytes = new LongAdder();
+  final LongAdder receivedBytes = new LongAdder();
+  final LongAdder errors = new LongAdder();
+  final LongAdder gamesFinished = new LongAdder();
+  //board deltas bots dropped after missing the one before, see Bot
+  final LongAdder resyncs = new LongAdder();
+  
+  String host = "127.0.0.1";
+  int port = 10000;
+  int numBots = 100;
+  int roomSize = 4;
+  double claimRate = 1.0;
+  double invalidRatio = 0.1;
+  int durationSeconds = 30;
+  int numLoops = Runtime.getRuntime().availableProcessors();
+  String prefix = "bot";
+  boolean binary = false;
+  int tickMillis = 0;
+  
+  public static void main(String [] args) throws Exception {
+    LoadGenerator generator = new LoadGenerator();
+    try {
+      generator.parse(args);
+    } catch (RuntimeException except) {
+      System.err.println("Invalid arguments: " + except.getMessage());
+      System.err.println("usage: LoadGenerator [-host 127.0.0.1] "
+              + "[-port 10000] [-bots 100] [-room 4] [-rate 1.0] "
+              + "[-invalid 0.1] [-duration 30] [-loops cores] [-prefix bot] "
+              + "[-binary true] [-tick 0]");
+      System.exit(1);
+    }
+    generator.run();
+  }
+  
+  void parse(String [] args) {
+    for (int i = 0; i < args.length; i += 2) {
+      if (i + 1 >= args.length)
+        throw new IllegalArgumentException("no value for " + args[i]);
+      String value = args[i + 1];
+      switch (args[i]) {
+        case "-host": host = value; break;
+        case "-port": port = Integer.parseInt(value); break;
+        case "-bots": numBots = Integer.parseInt(value); break;
+        case "-room": roomSize = Integer.parseInt(value); break;
+        case "-rate": claimRate = Double.parseDouble(value); break;
+        case "-invalid": invalidRatio = Double.parseDouble(value); break;
+        case "-duration": durationSeconds = Integer.parseInt(value); break;
+        case "-loops": numLoops = Integer.parseInt(value); break;
+        case "-prefix": prefix = value; break;
+        case "-binary": binary = Boolean.parseBoolean(value); break;
+        case "-tick": tickMillis = Integer.parseInt(value); break;
+        default: throw new IllegalArgumentException("unknown " + args[i]);
+      }
+    }
+    if (numBots < 1 || roomSize < 1 || claimRate <= 0 || numLoops < 1)
+      throw new IllegalArgumentException("-bots, -room, -rate and -loops "
+              + "must be positive");
+    if (tickMillis < 0)
+      throw new IllegalArgumentException("-tick can't be negative");
+  }
+  
+  void run() throws IOException, InterruptedException {
+    running = true;
+    InetSocketAddress server = new InetSocketAddress(host, port);
+    BotLoop[] loops = new BotLoop[Math.min(numLoops, numBots)];
+    for (int i = 0; i != loops.length; ++i)
+      loops[i] = new BotLoop(i, this, server);
+    
+    SplittableRandom seeds = new SplittableRandom();
+    for (int first = 0; first < numBots; first += roomSize) {
+      int groupSize = Math.min(roomSize, numBots - first);
+      String roomName = prefix + "-room" + (first / roomSize);
+      HashSet<String> members = new HashSet<>();
+      for (int i = first + 1; i < first + groupSize; ++i)
+        members.add(prefix + i);
+      for (int i = first; i < first + groupSize; ++i) {
+        BotLoop loop = loops[i % loops.length];
+        loop.addBot(new Bot(prefix + i, i == first, roomName, groupSize,
+                i == first ? members : null, loop, claimRate, invalidRatio,
+                binary, seeds.split()));
+      }
+    }
+    
+    for (BotLoop loop : loops)
+      loop.start();
+    long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MILLIS;
+    while (connected.sum() < numBots
+            && System.currentTimeMillis() < deadline)
+      Thread.sleep(10);
+    System.out.println(connected.sum() + " of " + numBots + " bots connected");
+    Thread.sleep(SETTLE_MILLIS);
+    
+    long start = System.nanoTime();
+    registering = true;
+    long lastSent = 0;
+    long lastReceived = 0;
+    for (int second = 1; second <= durationSeconds; ++second) {
+      Thread.sleep(Math.max(0, start / 1000000 + second * 1000L
+              - System.nanoTime() / 1000000));
+      long nowSent = sent.sum();
+      long nowReceived = received.sum();
+      System.out.printf("%4ds  connected %6d  sent %8d/s  received %9d/s"
+              + "  games %6d  errors %d%n", second, connected.sum(),
+              nowSent - lastSent, nowReceived - lastReceived,
+              gamesFinished.sum(), errors.sum());
+      lastSent = nowSent;
+      lastReceived = nowReceived;
+    }
+    running = false;
+    for (BotLoop loop : loops)
+      loop.join();
+    double seconds = (System.nanoTime() - start) / 1e9;
+    report(loops, seconds);
+  }
+  
+  void report(BotLoop[] loops, double seconds) {
+    System.out.println();
+    System.out.printf("%d bots, %d per room, %.1f claims/s per bot, "
+            + "%.0f%% invalid, %.1fs, %s%n", numBots, roomSize, claimRate,
+            invalidRatio * 100, seconds,
+            tickMillis > 0 ? tickMillis + " ms room ticks" : "no room ticks");
+    System.out.printf("sent %.0f messages/s (%.0f bytes/s), received %.0f "
+            + "messages/s (%.0f bytes/s), %s framing%n", sent.sum() / seconds,
+            sentBytes.sum() / seconds, received.sum() / seconds,
+            receivedBytes.sum() / seconds, binary ? "binary" : "text");
+    System.out.printf("%d games finished, %d errors, %d board resyncs%n",
+            gamesFinished.sum(), errors.sum(), resyncs.sum());
+    System.out.println();
+    System.out.printf("%-14s %9s %9s %9s %9s %9s %9s %9s %9s%n", "request",
+            "count", "per sec", "mean ms", "p50 ms", "p90 ms", "p99 ms",
+            "p99.9 ms", "max ms");
+    for (RequestType type : RequestType.values()) {
+      LatencyHistogram total = new LatencyHistogram();
+      for (BotLoop loop : loops)
+        total.add(loop.histograms[type.ordinal()]);
+      if (total.getCount() == 0)
+        continue;
+      System.out.printf("%-14s %9d %9.1f %9.3f %9.3f %9.3f %9.3f %9.3f %9.3f%n",
+              type, total.getCount(), total.getCount() / seconds,
+              total.getMean() / 1000, total.getPercentile(50) / 1000.0,
+              total.getPercentile(90) / 1000.0,
+              total.getPercentile(99) / 1000.0,
+              total.getPercentile(99.9) / 1000.0, total.getMax() / 1000.0);
+    }
+  }
+}
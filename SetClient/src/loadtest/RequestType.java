@@ -0,0 +1,27 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package SetClient.src.loadtest;
+
+/**
+ * The requests a Bot times, each gets its own latency histogram
+ * Latency is measured from sending the request to the first reply to it:
+ * REGISTER, LOGIN  - P~A~[own name] or X~
+ * CREATE_ROOM      - G~U~ with the room's names
+ * JOIN_ROOM        - G~U~ with the room's names, or J~F / J~I
+ * START_GAME       - G~S~ once every bot in the room is ready
+ * CLAIM            - the next G~ board update, which can be another
+ * INVALID_CLAIM      player's claim that the server handled first
+ */
+public enum RequestType {
+  REGISTER,
+  LOGIN,
+  CREATE_ROOM,
+  JOIN_ROOM,
+  START_GAME,
+  CLAIM,
+  INVALID_CLAIM
+}
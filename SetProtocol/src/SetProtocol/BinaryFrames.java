@@ -0,0 +1,370 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package SetProtocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The binary wire format, version 1
+ * frame := varint(length) opcode payload, length counts opcode + payload
+ * OP_TEXT  - payload is the text message (ISO-8859-1, no '\n'), used for
+ *            everything without a compact form
+ * OP_BOARD - G~flag~cards~scores[~sequence]: flag char, card count, one byte
+ *            per card, score count as a varint, then each score as a zigzag
+ *            varint, then the sequence as a varint if there is one
+ * OP_DELTA - G~D~flag~sequence~changes~player score...: flag char,
+ *            sequence varint, change count, a slot byte and a card byte
+ *            (0xff for an empty slot) per change, then each player and
+ *            score as zigzag varints up to the end of the frame
+ * OP_CLAIM - S~card1~card2~card3[~version]: three card bytes, then the
+ *            version as a varint if there is one
+ * Both sides translate frames to and from the text messages, so everything
+ * above the connections keeps working on text (a decoded board message has
+ * no trailing spaces, otherwise it is the text that was encoded)
+ * Shared by SetServer and SetClient, so both ends always agree on it
+ */
+public class BinaryFrames {
+  
+  public static final String NEGOTIATE = "B~1";
+  public static final String REFUSE = "B~0";
+  
+  static final int OP_TEXT = 0;
+  static final int OP_BOARD = 1;
+  static final int OP_CLAIM = 2;
+  static final int OP_DELTA = 3;
+  static final int MAX_FRAME_LENGTH = 64 * 1024;
+  //varint bytes needed for MAX_FRAME_LENGTH
+  static final int MAX_HEADER_LENGTH = 3;
+  static final int NUM_CARDS = 81;
+  //what DataOutputStream.writeBytes, which the protocol was written
+  //against, and the text frames use
+  public static final Charset CHARSET = StandardCharsets.ISO_8859_1;
+  
+  public static byte[] encode(String message) {
+    ByteArrayOutputStream frame = new ByteArrayOutputStream(
+            message.length() + 4);
+    if (!encodeBoard(message, frame) && !encodeDelta(message, frame)
+            && !encodeClaim(message, frame)) {
+      frame.reset();
+      frame.write(OP_TEXT);
+      byte[] text = message.getBytes(CHARSET);
+      frame.write(text, 0, text.length);
+    }
+    byte[] body = frame.toByteArray();
+    ByteArrayOutputStream out = new ByteArrayOutputStream(body.length
+            + MAX_HEADER_LENGTH);
+    writeVarint(out, body.length);
+    out.write(body, 0, body.length);
+    return out.toByteArray();
+  }
+  
+  //bytes in the length prefix starting at offset, 0 if it is not all
+  //there yet, -1 if it is longer than any valid frame needs
+  public static int headerLength(byte[] buffer, int offset, int limit) {
+    for (int i = 0; i != MAX_HEADER_LENGTH; ++i) {
+      if (offset + i >= limit)
+        return 0;
+      if ((buffer[offset + i] & 0x80) == 0)
+        return i + 1;
+    }
+    return -1;
+  }
+  
+  //the length prefix at offset, headerLength must have found it complete
+  public static int readLength(byte[] buffer, int offset) {
+    int length = 0;
+    for (int shift = 0; ; shift += 7) {
+      byte b = buffer[offset++];
+      length |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0)
+        return length;
+    }
+  }
+  
+  //the text message in the frame body (opcode + payload), null if malformed
+  public static String decode(byte[] buffer, int offset, int length) {
+    if (length < 1)
+      return null;
+    int end = offset + length;
+    int opcode = buffer[offset++];
+    switch (opcode) {
+      case OP_TEXT:
+        return new String(buffer, offset, end - offset,
+                CHARSET);
+      case OP_BOARD:
+        return decodeBoard(buffer, offset, end);
+      case OP_DELTA:
+        return decodeDelta(buffer, offset, end);
+      case OP_CLAIM:
+        return decodeClaim(buffer, offset, end);
+      default:
+        return null;
+    }
+  }
+  
+  //blocking read of the next frame's message, null at end of stream
+  public static String readFrame(InputStream in) throws IOException {
+    int length = 0;
+    for (int i = 0; ; ++i) {
+      int b = in.read();
+      if (b < 0)
+        return null;
+      if (i == MAX_HEADER_LENGTH)
+        throw new IOException("Malformed frame length");
+      length |= (b & 0x7f) << (7 * i);
+      if ((b & 0x80) == 0)
+        break;
+    }
+    if (length > MAX_FRAME_LENGTH)
+      throw new IOException("Frame too long: " + length);
+    byte[] body = in.readNBytes(length);
+    if (body.length != length)
+      return null;
+    String message = decode(body, 0, length);
+    if (message == null)
+      throw new IOException("Malformed frame");
+    return message;
+  }
+  
+  private static boolean encodeBoard(String message, ByteArrayOutputStream out) {
+    if (!message.startsWith("G~"))
+      return false;
+    String [] pieces = message.split("~", -1);
+    if (pieces.length < 4 || pieces.length > 5 || pieces[1].length() != 1
+            || "SYNFO".indexOf(pieces[1].charAt(0)) < 0)
+      return false;
+    try {
+      out.write(OP_BOARD);
+      out.write(pieces[1].charAt(0));
+      int [] cards = numbers(pieces[2]);
+      if (cards.length > NUM_CARDS)
+        return false;
+      out.write(cards.length);
+      for (int c : cards) {
+        if (c < 0 || c >= NUM_CARDS)
+          return false;
+        out.write(c);
+      }
+      int [] scores = numbers(pieces[3]);
+      writeVarint(out, scores.length);
+      for (int s : scores)
+        writeVarint(out, (s << 1) ^ (s >> 31));
+      if (pieces.length == 5)
+        return writeSequence(out, pieces[4]);
+      return true;
+    } catch (NumberFormatException except) {
+      return false;
+    }
+  }
+  
+  private static boolean encodeDelta(String message,
+                                     ByteArrayOutputStream out) {
+    if (!message.startsWith("G~D~"))
+      return false;
+    String [] pieces = message.split("~", -1);
+    if (pieces.length != 6 || pieces[2].length() != 1)
+      return false;
+    out.reset();
+    out.write(OP_DELTA);
+    out.write(pieces[2].charAt(0));
+    try {
+      if (!writeSequence(out, pieces[3]))
+        return false;
+      int [] changes = numbers(pieces[4]);
+      if (changes.length % 2 != 0 || changes.length / 2 > NUM_CARDS)
+        return false;
+      out.write(changes.length / 2);
+      for (int i = 0; i != changes.length; i += 2) {
+        int slot = changes[i];
+        int card = changes[i + 1];
+        if (slot < 0 || slot >= NUM_CARDS || card < -1 || card >= NUM_CARDS)
+          return false;
+        out.write(slot);
+        out.write(card);
+      }
+      int [] scores = numbers(pieces[5]);
+      if (scores.length % 2 != 0)
+        return false;
+      for (int v : scores)
+        writeVarint(out, (v << 1) ^ (v >> 31));
+      return true;
+    } catch (NumberFormatException except) {
+      return false;
+    }
+  }
+  
+  //only plain non-negative numbers, so decoding gives back the same text
+  private static boolean writeSequence(ByteArrayOutputStream out,
+                                       String sequence) {
+    int value = Integer.parseInt(sequence);
+    if (value < 0 || !sequence.equals(Integer.toString(value)))
+      return false;
+    writeVarint(out, value);
+    return true;
+  }
+  
+  private static boolean encodeClaim(String message, ByteArrayOutputStream out) {
+    if (!message.startsWith("S~"))
+      return false;
+    String [] pieces = message.split("~", -1);
+    if (pieces.length < 4 || pieces.length > 5)
+      return false;
+    out.reset();
+    out.write(OP_CLAIM);
+    try {
+      for (int i = 1; i != 4; ++i) {
+        int c = Integer.parseInt(pieces[i]);
+        //only plain card numbers, so decoding gives back the same text
+        if (c < 0 || c >= NUM_CARDS || !pieces[i].equals(Integer.toString(c)))
+          return false;
+        out.write(c);
+      }
+      if (pieces.length == 5)
+        return writeSequence(out, pieces[4]);
+      return true;
+    } catch (NumberFormatException except) {
+      return false;
+    }
+  }
+  
+  private static String decodeBoard(byte[] buffer, int offset, int end) {
+    if (end - offset < 2)
+      return null;
+    StringBuilder message = new StringBuilder(64);
+    message.append("G~").append((char) (buffer[offset++] & 0xff)).append('~');
+    int numCards = buffer[offset++] & 0xff;
+    if (numCards > end - offset)
+      return null;
+    for (int i = 0; i != numCards; ++i) {
+      if (i != 0)
+        message.append(' ');
+      message.append(buffer[offset++] & 0xff);
+    }
+    message.append('~');
+    int[] position = {offset};
+    long numScores = readVarint(buffer, position, end);
+    if (numScores < 0 || numScores > end - position[0])
+      return null;
+    for (int i = 0; i != numScores; ++i) {
+      long zigzag = readVarint(buffer, position, end);
+      if (zigzag < 0)
+        return null;
+      if (i != 0)
+        message.append(' ');
+      message.append(((int) zigzag >>> 1) ^ -((int) zigzag & 1));
+    }
+    if (position[0] != end) {
+      long sequence = readVarint(buffer, position, end);
+      if (sequence < 0 || sequence > Integer.MAX_VALUE)
+        return null;
+      message.append('~').append(sequence);
+    }
+    return position[0] == end ? message.toString() : null;
+  }
+  
+  private static String decodeClaim(byte[] buffer, int offset, int end) {
+    if (end - offset < 3)
+      return null;
+    String message = "S~" + (buffer[offset] & 0xff) + "~"
+            + (buffer[offset + 1] & 0xff) + "~"
+            + (buffer[offset + 2] & 0xff);
+    if (end - offset == 3)
+      return message;
+    int[] position = {offset + 3};
+    long version = readVarint(buffer, position, end);
+    if (version < 0 || version > Integer.MAX_VALUE || position[0] != end)
+      return null;
+    return message + "~" + version;
+  }
+  
+  private static String decodeDelta(byte[] buffer, int offset, int end) {
+    if (end - offset < 1)
+      return null;
+    StringBuilder message = new StringBuilder(48);
+    message.append("G~D~").append((char) (buffer[offset++] & 0xff))
+            .append('~');
+    int[] position = {offset};
+    long sequence = readVarint(buffer, position, end);
+    if (sequence < 0 || sequence > Integer.MAX_VALUE
+            || position[0] == end)
+      return null;
+    message.append(sequence).append('~');
+    offset = position[0];
+    int numChanges = buffer[offset++] & 0xff;
+    if (2 * numChanges > end - offset)
+      return null;
+    for (int i = 0; i != numChanges; ++i) {
+      if (i != 0)
+        message.append(' ');
+      message.append(buffer[offset++] & 0xff).append(' ')
+              .append(buffer[offset++]);
+    }
+    message.append('~');
+    position[0] = offset;
+    int numValues = 0;
+    while (position[0] != end) {
+      long zigzag = readVarint(buffer, position, end);
+      if (zigzag < 0)
+        return null;
+      if (numValues++ != 0)
+        message.append(' ');
+      message.append(((int) zigzag >>> 1) ^ -((int) zigzag & 1));
+    }
+    //players and scores come in pairs
+    return numValues % 2 == 0 ? message.toString() : null;
+  }
+  
+  //the space separated numbers in list, scanned by hand: split(" +") would
+  //run a regex and make a String per number on every board we send
+  private static int [] numbers(String list) {
+    int count = 0;
+    for (int i = 0; i != list.length(); ++i)
+      if (list.charAt(i) != ' ' && (i == 0 || list.charAt(i - 1) == ' '))
+        ++count;
+    int [] values = new int[count];
+    int n = 0;
+    int i = 0;
+    while (i != list.length()) {
+      if (list.charAt(i) == ' ') {
+        ++i;
+        continue;
+      }
+      int end = i;
+      while (end != list.length() && list.charAt(end) != ' ')
+        ++end;
+      values[n++] = Integer.parseInt(list, i, end, 10);
+      i = end;
+    }
+    return values;
+  }
+  
+  private static void writeVarint(ByteArrayOutputStream out, int value) {
+    while ((value & ~0x7f) != 0) {
+      out.write((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+  
+  //-1 if the varint runs past end or over 5 bytes
+  private static long readVarint(byte[] buffer, int[] position, int end) {
+    long value = 0;
+    for (int shift = 0; shift <= 28; shift += 7) {
+      if (position[0] >= end)
+        return -1;
+      byte b = buffer[position[0]++];
+      value |= (long) (b & 0x7f) << shift;
+      if ((b & 0x80) == 0)
+        return value & 0xffffffffL;
+    }
+    return -1;
+  }
+}
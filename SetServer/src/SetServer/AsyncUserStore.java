@@ -0,0 +1,58 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package SetServer;
+
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs UserStore calls on a small pool of database threads
+ * Callers continue on their own DispatchLane with thenAcceptAsync(.., lane)
+ * or whenCompleteAsync(.., lane), so no lane ever blocks on the database.
+ */
+public class AsyncUserStore {
+  final UserStore store;
+  final ExecutorService executor;
+  
+  //numThreads should match the connection pool size
+  public AsyncUserStore(UserStore store, int numThreads) {
+    this.store = store;
+    executor = Executors.newFixedThreadPool(numThreads, runnable -> {
+      Thread thread = new Thread(runnable, "UserStore");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+  
+  interface Query<T> {
+    T run() throws SQLException;
+  }
+  
+  <T> CompletableFuture<T> submit(Query<T> query) {
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        return query.run();
+      } catch (SQLException except) {
+        throw new CompletionException(except);
+      }
+    }, executor);
+  }
+  
+  public CompletableFuture<UserRecord> findUser(String username) {
+    return submit(() -> store.findUser(username));
+  }
+  
+  public CompletableFuture<Boolean> createUser(String username,
+                                              String password,
+                                              int rating) {
+    return submit(() -> store.createUser(username, password, rating));
+  }
+
+}
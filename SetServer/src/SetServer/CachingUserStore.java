@@ -0,0 +1,79 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package SetServer;
+
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * UserStore decorator keeping the most recently used users in memory
+ * so repeat logins and reconnects don't go to the database.
+ * Rating changes are written into the cache as soon as they happen (see
+ * cacheRating), the underlying store only sees them when the rating journal
+ * flushes.
+ */
+public class CachingUserStore implements UserStore {
+  public static final int DEFAULT_CAPACITY = 10000;
+  
+  final UserStore store;
+  final int capacity;
+  //access ordered, so the eldest entry is the least recently used
+  private final LinkedHashMap<String, UserRecord> cache;
+  
+  public CachingUserStore(UserStore store, int capacity) {
+    this.store = store;
+    this.capacity = capacity;
+    cache = new LinkedHashMap<String, UserRecord>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, UserRecord> e) {
+        return size() > CachingUserStore.this.capacity;
+      }
+    };
+  }
+  
+  @Override
+  public UserRecord findUser(String username) throws SQLException {
+    synchronized (this) {
+      UserRecord cached = cache.get(username);
+      if (cached != null)
+        return cached;
+    }
+    UserRecord found = store.findUser(username);
+    if (found != null) {
+      synchronized (this) {
+        //a rating cached meanwhile is newer than what was just read
+        cache.putIfAbsent(username, found);
+        return cache.get(username);
+      }
+    }
+    return null;
+  }
+  
+  @Override
+  public boolean createUser(String username, String password, int rating)
+          throws SQLException {
+    if (!store.createUser(username, password, rating))
+      return false;
+    synchronized (this) {
+      cache.put(username, new UserRecord(username, password, rating));
+    }
+    return true;
+  }
+  
+  @Override
+  public void updateRatings(Map<String, Integer> ratings) throws SQLException {
+    store.updateRatings(ratings);
+  }
+  
+  //write-through for a rating that changed in game, ahead of the database
+  public synchronized void cacheRating(String username, int rating) {
+    UserRecord cached = cache.get(username);
+    if (cached != null)
+      cache.put(username, new UserRecord(username, cached.password, rating));
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package SetServer;
+
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+  
+/**
+ * One client's commands, run one at a time in the order they were read
+ * A command is only handed to a lane once the one before it has finished,
+ * and picks its lane then, so a command that moves the client between
+ * rooms (N, J, E) has taken effect before the next one is routed by the
+ * room the client is in. Different clients' commands still run in parallel.
+ */
+public class ClientCommands {
+  
+  public interface Step {
+    //called when the step's turn comes, on the thread that finished the
+    //step before it
+    Executor lane();
+  
+    //null once the step is done, otherwise what it still waits for (e.g.
+    //a database query); the next step waits for it too
+    CompletionStage<?> run() throws InterruptedException;
+  }
+  
+  private final ConcurrentLinkedQueue<Step> steps;
+  //steps submitted and not finished, the one running included
+  private final AtomicInteger queued;
+  
+  public ClientCommands() {
+    steps = new ConcurrentLinkedQueue<>();
+    queued = new AtomicInteger();
+  }
+  
+  public void submit(Step step) {
+    steps.add(step);
+    if (queued.getAndIncrement() == 0)
+      dispatchNext();
+  }
+  
+  private void dispatchNext() {
+    Step step = steps.poll();
+    step.lane().execute(() -> {
+      CompletionStage<?> pending = null;
+      try {
+        pending = step.run();
+      } catch (InterruptedException except) {
+        System.out.println("Interrupted");
+      } finally {
+        //a step that threw is finished too, the lane reports it
+        if (pending == null)
+          finished();
+        else
+          pending.whenComplete((result, error) -> finished());
+      }
+    });
+  }
+  
+  private void finished() {
+    if (queued.decrementAndGet() != 0)
+      dispatchNext();
+  }
+}
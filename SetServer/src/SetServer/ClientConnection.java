@@ -6,42 +6,138 @@
 
 package SetServer;
 
-import java.io.BufferedReader;
+import SetProtocol.BinaryFrames;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /*
  * Will spawn and run each time a new client connects
+ * The reader runs on a thread made by threadFactory (platform or virtual).
+ * send() only queues into this client's OutboundQueue; a flush task on
+ * writerExecutor then writes everything pending with a single flush, so a
+ * slow client only ever holds up its own writes.
  * @author Harrison
  */
-public class ClientConnection extends Thread {
+public class ClientConnection implements Runnable, ClientEndpoint {
+  static final int MAX_FRAMES_PER_FLUSH = 64;
+  
   final int clientID;
   Boolean isrunning;
   final Socket socket;
   final BlockingQueue<Message> incomingMessages;
-  private BufferedReader incomingStream;
+  final ThreadFactory threadFactory;
+  final Executor writerExecutor;
+  final OutboundQueue outbound;
+  //at most one flush task per client is queued or running at a time
+  final AtomicBoolean flushScheduled;
+  private InputStream incomingStream;
+  private OutputStream outgoingStream;
+  //framing of what the client sends, only touched by the reader
+  private boolean binaryIn;
+  //framing of what we send, only touched by the ServerMessenger
+  private WireProtocol protocol;
   
   public ClientConnection(int clientID,
                           Boolean isrunning,
                           Socket socket,
-                          BlockingQueue<Message> incomingMessages){
-    super("ClientConnection: " + clientID);
+                          BlockingQueue<Message> incomingMessages,
+                          ThreadFactory threadFactory,
+                          Executor writerExecutor,
+                          OutboundQueue outbound){
     this.clientID = clientID;
     this.isrunning = isrunning;
     this.socket = socket;
     this.incomingMessages= incomingMessages;
+    this.threadFactory = threadFactory;
+    this.writerExecutor = writerExecutor;
+    this.outbound = outbound;
+    flushScheduled = new AtomicBoolean(false);
+    binaryIn = false;
+    protocol = WireProtocol.TEXT;
+    try {
+      incomingStream = new BufferedInputStream(this.socket.getInputStream());
+      outgoingStream = new BufferedOutputStream(this.socket.getOutputStream());
+    } catch (IOException except) {
+      System.err.println("Problem getting streams from client id: " + clientID);
+    }
+  }
+  
+  @Override
+  public int getClientID() {
+    return clientID;
+  }
+  
+  public void start() {
+    ConnectionThreads.start(threadFactory, "ClientConnection: " + clientID,
+            this);
+  }
+  
+  @Override
+  public void send(Message message) {
+    //the frames after a switch are only readable if it reaches the client
+    boolean queued = outbound.offer(message.getFrame(protocol),
+            message.switchTo != null);
+    if (queued && message.switchTo != null)
+      protocol = message.switchTo;
+    if (!queued) {
+      System.err.println("Client with id: " + clientID
+              + " fell behind, disconnecting");
+      close();
+      return;
+    }
+    if (flushScheduled.compareAndSet(false, true))
+      writerExecutor.execute(this::flush);
+  }
+  
+  private void flush() {
+    List<byte[]> batch = new ArrayList<>();
+    while (true) {
+      if (outbound.drainTo(batch, MAX_FRAMES_PER_FLUSH) == 0) {
+        flushScheduled.set(false);
+        //a send may have slipped in after the drain, keep going if so
+        if (outbound.isEmpty() || !flushScheduled.compareAndSet(false, true))
+          return;
+        continue;
+      }
+      try {
+        for (byte[] frame : batch)
+          outgoingStream.write(frame);
+        outgoingStream.flush();
+      } catch (IOException except) {
+        System.err.println("Failed to send message to client with ID: "
+                + clientID);
+        outbound.clear();
+        flushScheduled.set(false);
+        return;
+      }
+      batch.clear();
+    }
+  }
+  
+  @Override
+  public void close() {
+    outbound.clear();
     try {
-      incomingStream = new BufferedReader(new InputStreamReader(
-              this.socket.getInputStream()));
+      socket.close();
     } catch (IOException except) {
-      System.err.println("Problem getting istream from client id: " + clientID);
+      System.err.println("Problem closing socket of client id: " + clientID);
     }
   }
   
+  //stops the read loop so "D" is only reported once per connection
   void handleDisconnection() {
     System.out.println("Client with id: " + clientID + " disconnected");
+    isrunning = false;
     try {
       incomingMessages.put(new Message(clientID, "D"));       
     } catch (InterruptedException ex) {
@@ -55,10 +151,20 @@ public class ClientConnection extends Thread {
     String incomingMessage;
     while (isrunning) {
       try {
-        incomingMessage = incomingStream.readLine();
+        //BACKPRESSURE: a client we can't write to fast enough isn't read
+        //from either, so it can't keep adding to its own traffic
+        outbound.awaitUncongested();
+        if (binaryIn)
+          incomingMessage = BinaryFrames.readFrame(incomingStream);
+        else
+          incomingMessage = readLine();
         if (incomingMessage != null) {
+          //everything after the request is framed in binary
+          if (!binaryIn && incomingMessage.equals(BinaryFrames.NEGOTIATE))
+            binaryIn = true;
           try {
-            incomingMessages.put(new Message(clientID, incomingMessage));
+            incomingMessages.put(new Message(clientID, incomingMessage,
+                    System.nanoTime()));
           } catch (InterruptedException except) {
           }
         } else {
@@ -66,7 +172,24 @@ public class ClientConnection extends Thread {
         }
       } catch (IOException except) {
         handleDisconnection();
+      } catch (InterruptedException except) {
+        System.err.println("Interrupted reading from client id: " + clientID);
       }
     }
   }
+  
+  //next '\n' terminated line without the '\r\n', null at end of stream
+  private String readLine() throws IOException {
+    StringBuilder line = new StringBuilder();
+    int b;
+    while ((b = incomingStream.read()) != '\n') {
+      if (b < 0)
+        return null;
+      line.append((char) b);
+    }
+    int length = line.length();
+    if (length > 0 && line.charAt(length - 1) == '\r')
+      line.setLength(length - 1);
+    return line.toString();
+  }
 }
@@ -0,0 +1,27 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package SetServer;
+
+import SetProtocol.BinaryFrames;
+import java.nio.charset.Charset;
+
+/**
+ * Write side of a single client connection, whichever front end owns it
+ * (blocking ClientConnection threads or a SelectorLoop)
+ */
+public interface ClientEndpoint {
+  //matches DataOutputStream.writeBytes, which the protocol was written against
+  Charset WIRE_CHARSET = BinaryFrames.CHARSET;
+  
+  int getClientID();
+  
+  //queues message.getFrame() in this client's WireProtocol, then switches
+  //protocol if the message says to; only called from the ServerMessenger
+  void send(Message message);
+  
+  void close();
+}
@@ -0,0 +1,51 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package SetServer;
+
+/**
+ * Typed callbacks for the client commands, called by CommandParser with
+ * the fields already extracted: numbers as ints, text as Strings
+ */
+public interface CommandHandler {
+  
+  //L~username~password
+  void login(int clientID, String username, String password);
+  
+  //R~username~password
+  void register(int clientID, String username, String password);
+  
+  //D, sent by the connection itself when the client goes away
+  void disconnect(int clientID);
+  
+  //N~[room name]~maxNumPlayers[~tick milliseconds], tick 0 if there is none
+  void createGame(int clientID, String roomName, int maxNumPlayers,
+                  int tickMillis);
+  
+  //J~[room number]
+  void joinGame(int clientID, int roomNumber);
+  
+  //G
+  void startGame(int clientID);
+  
+  //S~card1~card2~card3[~version], version -1 if the claim has none
+  void claimSet(int clientID, int card1, int card2, int card3, int version);
+  
+  //E
+  void exitGame(int clientID);
+  
+  //C~message
+  void lobbyChat(int clientID, String message);
+  
+  //T~message
+  void gameChat(int clientID, String message);
+  
+  //B~version, -1 if the version is not a plain number
+  void negotiate(int clientID, int version);
+  
+  //a known command with the wrong number of fields or a bad number
+  void malformed(int clientID, char command, String error);
+}
@@ -0,0 +1,155 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package SetServer;
+
+import SetProtocol.BinaryFrames;
+
+/**
+ * Decodes '~' delimited commands and calls the matching CommandHandler
+ * method, without String.split: one pass finds the field boundaries, numbers
+ * are parsed in place and only the text fields a handler keeps (names,
+ * passwords, chat) become Strings. Commands with no text field allocate
+ * nothing.
+ * Fields are counted the way String.split("~") counts them (trailing empty
+ * fields are dropped) so the accepted commands are the same as before
+ * Not thread safe, the field positions are reused between calls
+ */
+public class CommandParser {
+  
+  static final int MAX_FIELDS = 4;
+  
+  //start and end (exclusive) of each field after the command letter
+  private final int[] fieldStart = new int[MAX_FIELDS];
+  private final int[] fieldEnd = new int[MAX_FIELDS];
+  private int numFields;
+  private CharSequence message;
+  
+  public void parse(int clientID, CharSequence message, CommandHandler handler) {
+    if (message.length() == 0 || message.charAt(0) == '~')
+      return;
+    this.message = message;
+    findFields();
+    char command = message.charAt(0);
+    try {
+      switch (command) {
+        case 'L':
+          if (expect(2, clientID, command, "Message length error!", handler))
+            handler.login(clientID, text(0), text(1));
+          break;
+        case 'R':
+          if (expect(2, clientID, command, "Message error!", handler))
+            handler.register(clientID, text(0), text(1));
+          break;
+        case 'D':
+          if (expect(0, clientID, command,
+                  "Disconnection message length error!", handler))
+            handler.disconnect(clientID);
+          break;
+        case 'N':
+          //the tick is optional
+          if (numFields == 3)
+            handler.createGame(clientID, text(0), number(1), number(2));
+          else if (expect(2, clientID, command,
+                  "Create game message length error!", handler))
+            handler.createGame(clientID, text(0), number(1), 0);
+          break;
+        case 'J':
+          if (expect(1, clientID, command, "Join game message length error!",
+                  handler))
+            handler.joinGame(clientID, number(0));
+          break;
+        case 'G':
+          if (expect(0, clientID, command, "Start game message length error!",
+                  handler))
+            handler.startGame(clientID);
+          break;
+        case 'S':
+          //the board version is optional
+          if (numFields == 4)
+            handler.claimSet(clientID, number(0), number(1), number(2),
+                    number(3));
+          else if (expect(3, clientID, command, "Set message length error!",
+                  handler))
+            handler.claimSet(clientID, number(0), number(1), number(2), -1);
+          break;
+        case 'E':
+          if (expect(0, clientID, command, "Leave game message length error!",
+                  handler))
+            handler.exitGame(clientID);
+          break;
+        case 'C':
+          if (expect(1, clientID, command, "Lobby chat message length error!",
+                  handler))
+            handler.lobbyChat(clientID, text(0));
+          break;
+        case 'T':
+          if (expect(1, clientID, command, "Game chat message length error!",
+                  handler))
+            handler.gameChat(clientID, text(0));
+          break;
+        case 'B':
+          if (expect(1, clientID, command, "Negotiation message length error!",
+                  handler))
+            handler.negotiate(clientID, version());
+          break;
+        default:
+          break;
+      }
+    } catch (NumberFormatException except) {
+      handler.malformed(clientID, command, "Invalid number in: " + message);
+    } finally {
+      this.message = null;
+    }
+  }
+  
+  private void findFields() {
+    numFields = 0;
+    int length = message.length();
+    int pieceStart = 0;
+    int lastNonEmpty = 0;
+    for (int i = 0; i <= length; ++i) {
+      if (i != length && message.charAt(i) != '~')
+        continue;
+      //the command letter's own piece is not a field
+      if (pieceStart != 0) {
+        if (numFields < MAX_FIELDS) {
+          fieldStart[numFields] = pieceStart;
+          fieldEnd[numFields] = i;
+        }
+        ++numFields;
+        if (i != pieceStart)
+          lastNonEmpty = numFields;
+      }
+      pieceStart = i + 1;
+    }
+    numFields = lastNonEmpty;
+  }
+  
+  private boolean expect(int count, int clientID, char command, String error,
+                         CommandHandler handler) {
+    if (numFields == count)
+      return true;
+    handler.malformed(clientID, command, error);
+    return false;
+  }
+  
+  private String text(int field) {
+    return message.subSequence(fieldStart[field], fieldEnd[field]).toString();
+  }
+  
+  private int number(int field) {
+    return Integer.parseInt(message, fieldStart[field], fieldEnd[field], 10);
+  }
+  
+  //a connection's reader switches to binary frames only on a line that is
+  //exactly BinaryFrames.NEGOTIATE, so only that line asks for version 1;
+  //anything close to it (e.g. "B~1~" or "B~01") left the reader on text
+  //and must be refused
+  private int version() {
+    return BinaryFrames.NEGOTIATE.contentEquals(message) ? 1 : -1;
+  }
+}
@@ -0,0 +1,26 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package SetServer;
+
+/**
+ * How the server talks to its sockets, picked at startup
+ * THREAD_PER_CLIENT - one blocking ClientConnection thread per socket
+ * SELECTOR          - non-blocking channels multiplexed over a few
+ *                     SelectorLoops (one per core)
+ * VIRTUAL_THREADS   - same blocking code as THREAD_PER_CLIENT, but client
+ *                     reads and flushes run on virtual threads
+ */
+public enum ConnectionMode {
+  THREAD_PER_CLIENT,
+  SELECTOR,
+  VIRTUAL_THREADS;
+  
+  //accepts the enum name in any case, e.g. "selector"
+  public static ConnectionMode parse(String name) {
+    return valueOf(name.trim().toUpperCase());
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package SetServer;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded pool of JDBC connections, opened lazily up to maxConnections
+ * Idle connections are checked before being handed out since the server
+ * drops connections that sit unused for too long.
+ */
+public class ConnectionPool {
+  static final int VALIDATION_TIMEOUT_SECONDS = 1;
+  static final long BORROW_TIMEOUT_MILLIS = 5000;
+  
+  final String url;
+  final String user;
+  final String password;
+  final int maxConnections;
+  final BlockingQueue<Connection> idle;
+  private int numOpen;
+  
+  public ConnectionPool(String url, String user, String password,
+                        int maxConnections) {
+    this.url = url;
+    this.user = user;
+    this.password = password;
+    this.maxConnections = maxConnections;
+    idle = new LinkedBlockingQueue<>();
+    numOpen = 0;
+  }
+  
+  public Connection borrow() throws SQLException {
+    Connection connection = idle.poll();
+    while (connection != null) {
+      if (connection.isValid(VALIDATION_TIMEOUT_SECONDS))
+        return connection;
+      discard(connection);
+      connection = idle.poll();
+    }
+    if (reserve()) {
+      try {
+        return DriverManager.getConnection(url, user, password);
+      } catch (SQLException except) {
+        unreserve();
+        throw except;
+      }
+    }
+    try {
+      connection = idle.poll(BORROW_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException except) {
+      Thread.currentThread().interrupt();
+    }
+    if (connection == null)
+      throw new SQLException("Timed out waiting for a database connection");
+    return connection;
+  }
+  
+  public void release(Connection connection) {
+    idle.add(connection);
+  }
+  
+  //for connections that failed mid-query
+  public void discard(Connection connection) {
+    unreserve();
+    try {
+      connection.close();
+    } catch (SQLException except) {
+      System.err.println("Problem closing database connection");
+    }
+  }
+  
+  private synchronized boolean reserve() {
+    if (numOpen == maxConnections)
+      return false;
+    ++numOpen;
+    return true;
+  }
+  
+  private synchronized void unreserve() {
+    --numOpen;
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package SetServer;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Thread factories and writer executors for the per-client threads
+ * Virtual threads are looked up reflectively so the server still builds and
+ * runs on JDKs without them (it falls back to platform threads there).
+ */
+public final class ConnectionThreads {
+  
+  private ConnectionThreads() {
+  }
+  
+  private static final ThreadFactory PLATFORM = runnable -> new Thread(runnable);
+  
+  public static ThreadFactory platform() {
+    return PLATFORM;
+  }
+  
+  //Thread.ofVirtual().factory(), Java 21+
+  public static ThreadFactory virtual() {
+    try {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      return (ThreadFactory) Class.forName("java.lang.Thread$Builder")
+              .getMethod("factory").invoke(builder);
+    } catch (ReflectiveOperationException except) {
+      System.err.println("Virtual threads not supported by this JVM, "
+              + "using platform threads instead");
+      return platform();
+    }
+  }
+  
+  public static ThreadFactory forMode(ConnectionMode mode) {
+    if (mode == ConnectionMode.VIRTUAL_THREADS)
+      return virtual();
+    return platform();
+  }
+  
+  //runs ClientConnection flushes: a new virtual thread per flush, or a fixed
+  //pool of platform threads so a few stuck clients can't exhaust it
+  //takes the factory forMode returned, so a fallback only warns once and
+  //gets the pool rather than an OS thread per flush
+  public static Executor writerExecutor(ThreadFactory factory) {
+    if (factory != PLATFORM)
+      return runnable -> start(factory, "ClientWriter", runnable);
+    //without virtual threads a thread per flush would be an OS thread each
+    return Executors.newFixedThreadPool(
+            4 * Runtime.getRuntime().availableProcessors(), runnable -> {
+              Thread thread = new Thread(runnable, "ClientWriter");
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+  
+  static Thread start(ThreadFactory factory, String name, Runnable runnable) {
+    Thread thread = factory.newThread(runnable);
+    thread.setName(name);
+    thread.start();
+    return thread;
+  }
+}
@@ -0,0 +1,47 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package SetServer;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Single thread draining a mailbox of commands in order
+ * SetServer runs the lobby on one lane and spreads the game rooms over a few
+ * more, so everything touching a given room happens on the same thread.
+ */
+public class DispatchLane extends Thread implements Executor {
+  Boolean isrunning;
+  final BlockingQueue<Runnable> mailbox;
+  
+  public DispatchLane(String name, Boolean isrunning) {
+    super(name);
+    this.isrunning = isrunning;
+    mailbox = new LinkedBlockingQueue<>();
+  }
+  
+  @Override
+  public void execute(Runnable command) {
+    mailbox.add(command);
+  }
+  
+  @Override
+  public void run() {
+    while (isrunning) {
+      try {
+        mailbox.take().run();
+      } catch (InterruptedException except) {
+        System.out.println("Interrupted");
+      } catch (RuntimeException except) {
+        //a bad command from one client must not take the lane down
+        System.err.println(getName() + " failed to process a command: "
+                + except);
+      }
+    }
+  }
+}
@@ -0,0 +1,42 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package SetServer;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * UserStore kept in a map, for running the server without MySQL
+ * Everything is lost when the server stops.
+ */
+public class InMemoryUserStore implements UserStore {
+  final ConcurrentMap<String, UserRecord> records;
+  
+  public InMemoryUserStore() {
+    records = new ConcurrentHashMap<>();
+  }
+  
+  @Override
+  public UserRecord findUser(String username) {
+    return records.get(username);
+  }
+  
+  @Override
+  public boolean createUser(String username, String password, int rating) {
+    return records.putIfAbsent(username,
+            new UserRecord(username, password, rating)) == null;
+  }
+  
+  @Override
+  public void updateRatings(Map<String, Integer> ratings) {
+    for (Map.Entry<String, Integer> update : ratings.entrySet()) {
+      records.computeIfPresent(update.getKey(), (name, old) ->
+              new UserRecord(name, old.password, update.getValue()));
+    }
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package SetServer;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+
+/**
+ * UserStore backed by the MySQL users table
+ * users(username VARCHAR PRIMARY KEY, password VARCHAR, rating INT)
+ */
+public class JdbcUserStore implements UserStore {
+  static final String FIND_USER =
+          "SELECT password, rating FROM users WHERE username = ?";
+  static final String CREATE_USER =
+          "INSERT INTO users (username, password, rating) VALUES (?, ?, ?)";
+  static final String UPDATE_RATING =
+          "UPDATE users SET rating = ? WHERE username = ?";
+  
+  final ConnectionPool pool;
+  
+  public JdbcUserStore(ConnectionPool pool) {
+    this.pool = pool;
+  }
+  
+  @Override
+  public UserRecord findUser(String username) throws SQLException {
+    Connection connection = pool.borrow();
+    try (PreparedStatement stmt = connection.prepareStatement(FIND_USER)) {
+      stmt.setString(1, username);
+      UserRecord found = null;
+      try (ResultSet rs = stmt.executeQuery()) {
+        if (rs.next())
+          found = new UserRecord(username, rs.getString("password"),
+                  rs.getInt("rating"));
+      }
+      pool.release(connection);
+      return found;
+    } catch (SQLException except) {
+      pool.discard(connection);
+      throw except;
+    }
+  }
+  
+  @Override
+  public boolean createUser(String username, String password, int rating)
+          throws SQLException {
+    if (findUser(username) != null)
+      return false;
+    Connection connection = pool.borrow();
+    try (PreparedStatement stmt = connection.prepareStatement(CREATE_USER)) {
+      stmt.setString(1, username);
+      stmt.setString(2, password);
+      stmt.setInt(3, rating);
+      stmt.executeUpdate();
+      pool.release(connection);
+      return true;
+    } catch (SQLException except) {
+      pool.discard(connection);
+      //lost a race with another registration of the same name
+      if (except.getSQLState() != null && except.getSQLState().startsWith("23"))
+        return false;
+      throw except;
+    }
+  }
+  
+  //one JDBC batch in one transaction
+  @Override
+  public void updateRatings(Map<String, Integer> ratings)
+          throws SQLException {
+    Connection connection = pool.borrow();
+    try (PreparedStatement stmt = connection.prepareStatement(UPDATE_RATING)) {
+      connection.setAutoCommit(false);
+      for (Map.Entry<String, Integer> update : ratings.entrySet()) {
+        stmt.setInt(1, update.getValue());
+        stmt.setString(2, update.getKey());
+        stmt.addBatch();
+      }
+      stmt.executeBatch();
+      connection.commit();
+      connection.setAutoCommit(true);
+      pool.release(connection);
+    } catch (SQLException except) {
+      pool.discard(connection);
+      throw except;
+    }
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package SetServer;
+
+import SetServer.src.gamebackend.GameRoom;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+  
+/**
+ * The lobby's table of rooms, as the clients in the lobby have been told it
+ * A client gets the whole table once when it subscribes, as
+ * U~S~version~[room]~[room]..., then only what changed after that version,
+ * as U~D~version~A~[room]~R~[room number]... Rooms are
+ * [room number]~[room name]~[numPlayers]~[max players]~[status].
+ * Any lane can mark a room changed; the changes are coalesced until the
+ * lobby lane flushes them, so a room that changes many times in one window
+ * costs one entry in one delta. The snapshot is encoded once per version
+ * and its frames are shared by every client that logs in before the next.
+ * Everything but markChanged must run on the lobby lane.
+ */
+public class LobbyListing {
+  final RoomRegistry rooms;
+  //encoded rooms as of version, by room number
+  final Map<Integer, String> listed;
+  int version;
+  //of listed at version, null until a subscriber needs it
+  Message snapshot;
+  final Set<Integer> subscribers;
+  //handed to the messenger with each delta, so it is replaced, not changed
+  int[] subscriberIds;
+  //room numbers changed since the last flush, from any lane
+  final ConcurrentLinkedQueue<Integer> changed;
+  final AtomicBoolean flushPending;
+  final StringBuilder encoder;
+  
+  public LobbyListing(RoomRegistry rooms) {
+    this.rooms = rooms;
+    listed = new TreeMap<>();
+    version = 0;
+    subscribers = new HashSet<>();
+    subscriberIds = new int[0];
+    changed = new ConcurrentLinkedQueue<>();
+    flushPending = new AtomicBoolean();
+    encoder = new StringBuilder();
+  }
+  
+  //any lane; true for the first change since the last flush, whoever gets
+  //it schedules the next one
+  public boolean markChanged(int roomNumber) {
+    changed.add(roomNumber);
+    return flushPending.compareAndSet(false, true);
+  }
+  
+  //the U~D delta of everything marked since the last flush, null if none
+  //of it shows in the lobby (e.g. a room opened and closed in one window)
+  public String flush() {
+    //cleared first: a room marked while we drain is either drained now or
+    //gets a flush of its own
+    flushPending.set(false);
+    Set<Integer> numbers = new TreeSet<>();
+    Integer number;
+    while ((number = changed.poll()) != null)
+      numbers.add(number);
+    encoder.setLength(0);
+    for (int roomNumber : numbers) {
+      GameRoom room = rooms.get(roomNumber);
+      if (room == null) {
+        if (listed.remove(roomNumber) != null)
+          encoder.append("~R~").append(roomNumber);
+      } else {
+        String row = encodeRoom(roomNumber, room);
+        if (!row.equals(listed.put(roomNumber, row)))
+          encoder.append("~A~").append(row);
+      }
+    }
+    if (encoder.length() == 0)
+      return null;
+    ++version;
+    snapshot = null;
+    return "U~D~" + version + encoder;
+  }
+  
+  //clientID gets the deltas after the returned snapshot
+  public Message subscribe(int clientID) {
+    if (subscribers.add(clientID))
+      subscriberIds = toArray(subscribers);
+    if (snapshot == null) {
+      encoder.setLength(0);
+      encoder.append("U~S~").append(version);
+      for (String row : listed.values())
+        encoder.append('~').append(row);
+      //never sent itself, only lends its frames
+      snapshot = new Message(Message.EVERYONE, encoder.toString());
+    }
+    return new Message(clientID, snapshot);
+  }
+  
+  public void unsubscribe(int clientID) {
+    if (subscribers.remove(clientID))
+      subscriberIds = toArray(subscribers);
+  }
+  
+  public int[] getSubscribers() {
+    return subscriberIds;
+  }
+  
+  public int getVersion() {
+    return version;
+  }
+  
+  static String encodeRoom(int roomNumber, GameRoom room) {
+    String status = room.isPlaying() ? "Active"
+            : room.isCompleted() ? "Complete" : "Inactive";
+    return roomNumber + "~" + room.getName() + "~" + room.getNumPlayers()
+            + "~" + room.getMaxNumPlayers() + "~" + status;
+  }
+  
+  static int[] toArray(Set<Integer> ids) {
+    int[] array = new int[ids.size()];
+    int i = 0;
+    for (int id : ids)
+      array[i++] = id;
+    return array;
+  }
+}
@@ -8,13 +8,72 @@ package SetServer;
 
 /**
  * let -1 be a message to everyone logged in
+ * and -2 a message to the clients listed in clientIDs (e.g. a game room)
+ * Outgoing messages are encoded to a frame once per WireProtocol, and that
+ * same byte array is handed to every recipient's OutboundQueue that speaks
+ * it, so it must never be modified.
  * @author Harrison
  */
 public class Message {
+  public static final int EVERYONE = -1;
+  public static final int RECIPIENTS = -2;
+  
   public int clientID;
+  public int[] clientIDs;
   public String message;
+  //the recipient's protocol after this message, null to keep it
+  public WireProtocol switchTo;
+  //System.nanoTime() when an incoming message was read, 0 if not recorded
+  public long receivedAt;
+  private byte[] textFrame;
+  private byte[] binaryFrame;
+  //whose frames this one uses instead of its own, null if none
+  private Message encoded;
+  
   public Message(int clientID, String message) {
     this.clientID = clientID;
     this.message = message;
   }
+  
+  public Message(int clientID, String message, long receivedAt) {
+    this(clientID, message);
+    this.receivedAt = receivedAt;
+  }
+  
+  public Message(int clientID, String message, WireProtocol switchTo) {
+    this(clientID, message);
+    this.switchTo = switchTo;
+  }
+  
+  //the same message for another client, encoded only once between them
+  //however far apart they are sent
+  public Message(int clientID, Message encoded) {
+    this(clientID, encoded.message);
+    this.encoded = encoded;
+  }
+  
+  public Message(int[] clientIDs, String message) {
+    this.clientID = RECIPIENTS;
+    this.clientIDs = clientIDs;
+    this.message = message;
+  }
+  
+  //the '\n' terminated wire bytes, shared by all recipients
+  public byte[] getFrame() {
+    return getFrame(WireProtocol.TEXT);
+  }
+  
+  //only called from the ServerMessenger thread
+  public byte[] getFrame(WireProtocol protocol) {
+    if (encoded != null)
+      return encoded.getFrame(protocol);
+    if (protocol == WireProtocol.BINARY) {
+      if (binaryFrame == null)
+        binaryFrame = protocol.encode(message);
+      return binaryFrame;
+    }
+    if (textFrame == null)
+      textFrame = protocol.encode(message);
+    return textFrame;
+  }
 }
@@ -0,0 +1,155 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package SetServer;
+
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * Bounded buffer of encoded frames waiting to be written to one client
+ * Frames are whole '\n' terminated messages; the writer drains everything
+ * that is pending at once so several messages go out in a single write.
+ */
+public class OutboundQueue {
+  public static final int DEFAULT_MAX_BYTES = 256 * 1024;
+  public static final long BACKPRESSURE_TIMEOUT_MILLIS = 2000;
+  
+  final int maxBytes;
+  final OverflowPolicy policy;
+  private final ArrayDeque<byte[]> frames;
+  private int queuedBytes;
+  private int droppedFrames;
+  //BACKPRESSURE: frames waiting for room, in order, so the sender never
+  //has to; at most another maxBytes of them
+  private final ArrayDeque<byte[]> parked;
+  private int parkedBytes;
+  //when the queue last made room for a parked frame, or the first was
+  //parked
+  private long parkedSince;
+  
+  public OutboundQueue(int maxBytes, OverflowPolicy policy) {
+    this.maxBytes = maxBytes;
+    this.policy = policy;
+    frames = new ArrayDeque<>();
+    queuedBytes = 0;
+    droppedFrames = 0;
+    parked = new ArrayDeque<>();
+    parkedBytes = 0;
+  }
+  
+  public OutboundQueue(OverflowPolicy policy) {
+    this(DEFAULT_MAX_BYTES, policy);
+  }
+  
+  //returns false if the client has fallen too far behind and should be
+  //disconnected, a dropped or parked frame still returns true
+  //never blocks, the one messenger thread offers to every client
+  public synchronized boolean offer(byte[] frame) {
+    return offer(frame, false);
+  }
+  
+  //same, but a frame the client can't do without (e.g. the answer that
+  //switches its wire protocol) is queued past maxBytes instead of dropped
+  public synchronized boolean offer(byte[] frame, boolean essential) {
+    if (!parked.isEmpty() || !hasRoomFor(frame)) {
+      switch (policy) {
+        case DROP:
+          if (essential)
+            break;
+          ++droppedFrames;
+          return true;
+        case DISCONNECT:
+          return false;
+        case BACKPRESSURE:
+          return park(frame);
+      }
+    }
+    frames.add(frame);
+    queuedBytes += frame.length;
+    return true;
+  }
+  
+  //moves up to maxFrames pending frames into batch, returns how many
+  public synchronized int drainTo(List<byte[]> batch, int maxFrames) {
+    int numDrained = 0;
+    byte[] frame;
+    unpark();
+    while (numDrained != maxFrames && (frame = frames.poll()) != null) {
+      batch.add(frame);
+      queuedBytes -= frame.length;
+      ++numDrained;
+    }
+    unpark();
+    return numDrained;
+  }
+  
+  public synchronized boolean isEmpty() {
+    return frames.isEmpty() && parked.isEmpty();
+  }
+  
+  //BACKPRESSURE: frames are waiting for room, the connection stops
+  //reading from the client until they have gone out
+  public synchronized boolean isCongested() {
+    return !parked.isEmpty();
+  }
+  
+  //blocks a reader thread while the queue is congested
+  public synchronized void awaitUncongested() throws InterruptedException {
+    while (!parked.isEmpty())
+      wait();
+  }
+  
+  public synchronized int getDroppedFrames() {
+    return droppedFrames;
+  }
+  
+  public synchronized void clear() {
+    frames.clear();
+    queuedBytes = 0;
+    parked.clear();
+    parkedBytes = 0;
+    notifyAll();
+  }
+  
+  //an empty queue always accepts, so one oversized frame can still go out
+  private boolean hasRoomFor(byte[] frame) {
+    return frames.isEmpty() || queuedBytes + frame.length <= maxBytes;
+  }
+  
+  //false once the client has made no room for BACKPRESSURE_TIMEOUT_MILLIS
+  //or the parked frames would pass maxBytes
+  private boolean park(byte[] frame) {
+    long now = System.currentTimeMillis();
+    if (parked.isEmpty())
+      parkedSince = now;
+    else if (now - parkedSince > BACKPRESSURE_TIMEOUT_MILLIS)
+      return false;
+    if (parkedBytes + frame.length > maxBytes)
+      return false;
+    parked.add(frame);
+    parkedBytes += frame.length;
+    return true;
+  }
+  
+  //moves parked frames into the queue as far as it has room, in order
+  private void unpark() {
+    boolean moved = false;
+    byte[] frame;
+    while ((frame = parked.peek()) != null && hasRoomFor(frame)) {
+      parked.poll();
+      parkedBytes -= frame.length;
+      frames.add(frame);
+      queuedBytes += frame.length;
+      moved = true;
+    }
+    if (moved) {
+      parkedSince = System.currentTimeMillis();
+      if (parked.isEmpty())
+        notifyAll();
+    }
+  }
+}
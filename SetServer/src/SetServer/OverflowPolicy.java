@@ -0,0 +1,29 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package SetServer;
+
+/**
+ * What an OutboundQueue does when a client stops reading and its buffer fills
+ * DROP         - new messages for that client are thrown away, except one
+ *                that switches its wire protocol
+ * DISCONNECT   - the client is disconnected
+ * BACKPRESSURE - messages that don't fit wait on the client's own queue
+ *                (the sender never does) and the server stops reading from
+ *                the client until they have been written, so it can't add
+ *                to its own traffic; it is disconnected if another
+ *                buffer's worth piles up or no room frees up within the
+ *                timeout
+ */
+public enum OverflowPolicy {
+  DROP,
+  DISCONNECT,
+  BACKPRESSURE;
+  
+  public static OverflowPolicy parse(String name) {
+    return valueOf(name.trim().toUpperCase());
+  }
+}
@@ -0,0 +1,201 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package SetServer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Write-behind log of rating changes
+ * record() appends "username\trating" to a local file and returns, a flusher
+ * thread writes the latest rating of every changed user to the UserStore in
+ * one batch once per interval (or sooner when batchSize users are pending).
+ * Whatever is in the file when the server starts has not been confirmed by
+ * the database yet and is replayed.
+ * Appends go straight to the OS so they survive the process dying; the file
+ * is only fsynced once per flush, before the batch is sent.
+ * Only swapping the batch and the log file hold the lock record() needs:
+ * the fsync and the compaction rewrite run outside it, so a game over never
+ * waits on the disk.
+ */
+public class RatingJournal extends Thread {
+  public static final String DEFAULT_FILE = "ratings.journal";
+  static final int DEFAULT_BATCH_SIZE = 64;
+  static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 1000;
+  
+  Boolean isrunning;
+  final UserStore store;
+  final Path logFile;
+  final int batchSize;
+  final long flushIntervalMillis;
+  //username -> latest rating not yet confirmed by the store
+  private Map<String, Integer> pending;
+  private FileChannel log;
+  //lines recorded while a compaction runs, for the compacted log, null
+  //when none runs
+  private List<byte[]> sinceCompaction;
+  
+  public RatingJournal(Boolean isrunning, UserStore store, Path logFile,
+                       int batchSize, long flushIntervalMillis) {
+    super("RatingJournal");
+    setDaemon(true);
+    this.isrunning = isrunning;
+    this.store = store;
+    this.logFile = logFile;
+    this.batchSize = batchSize;
+    this.flushIntervalMillis = flushIntervalMillis;
+    pending = new LinkedHashMap<>();
+  }
+  
+  public RatingJournal(Boolean isrunning, UserStore store) {
+    this(isrunning, store, Path.of(DEFAULT_FILE), DEFAULT_BATCH_SIZE,
+            DEFAULT_FLUSH_INTERVAL_MILLIS);
+  }
+  
+  //replays what the last run left behind, then starts flushing
+  //if this throws, start() the journal anyway to run without the local log
+  public void open() throws IOException {
+    if (Files.exists(logFile)) {
+      try (BufferedReader reader = Files.newBufferedReader(logFile,
+              StandardCharsets.UTF_8)) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          int tab = line.lastIndexOf('\t');
+          if (tab > 0)
+            pending.put(line.substring(0, tab),
+                    Integer.parseInt(line.substring(tab + 1)));
+        }
+      } catch (NumberFormatException except) {
+        //torn last line from a crash mid-append
+        System.err.println("Ignoring corrupt rating journal entry");
+      }
+      System.out.println("Replaying " + pending.size() + " rating updates");
+    }
+    log = FileChannel.open(logFile, StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    start();
+  }
+  
+  public synchronized void record(String username, int rating) {
+    pending.put(username, rating);
+    try {
+      byte[] line = encode(username, rating);
+      if (log != null)
+        log.write(ByteBuffer.wrap(line));
+      if (sinceCompaction != null)
+        sinceCompaction.add(line);
+    } catch (IOException except) {
+      System.err.println("Failed to journal rating of " + username);
+    }
+    if (pending.size() >= batchSize)
+      notifyAll();
+  }
+  
+  private Map<String, Integer> awaitBatch() throws InterruptedException {
+    Map<String, Integer> batch;
+    FileChannel synced;
+    synchronized (this) {
+      if (pending.size() < batchSize)
+        wait(flushIntervalMillis);
+      if (pending.isEmpty())
+        return null;
+      batch = pending;
+      pending = new LinkedHashMap<>();
+      synced = log;
+    }
+    //every line of the batch was written before the swap; only this thread
+    //closes the log, and force is safe next to record's writes
+    try {
+      if (synced != null)
+        synced.force(false);
+    } catch (IOException except) {
+      System.err.println("Failed to sync rating journal");
+    }
+    return batch;
+  }
+  
+  //the batch is in the store, so the log only needs what came in since
+  //the rewrite runs unlocked; what is recorded meanwhile is added under
+  //the lock just before the compacted file replaces the log
+  private void confirm() throws IOException {
+    Map<String, Integer> unconfirmed;
+    synchronized (this) {
+      if (log == null)
+        return;
+      unconfirmed = new LinkedHashMap<>(pending);
+      sinceCompaction = new ArrayList<>();
+    }
+    Path compacted = logFile.resolveSibling(logFile.getFileName() + ".tmp");
+    try (FileChannel out = FileChannel.open(compacted,
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+      for (Map.Entry<String, Integer> entry : unconfirmed.entrySet())
+        out.write(ByteBuffer.wrap(encode(entry.getKey(), entry.getValue())));
+      out.force(false);
+      synchronized (this) {
+        //as durable as they were in the old log: written, not yet fsynced
+        for (byte[] line : sinceCompaction)
+          out.write(ByteBuffer.wrap(line));
+        sinceCompaction = null;
+        log.close();
+        Files.move(compacted, logFile, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        log = FileChannel.open(logFile, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+      }
+    } finally {
+      synchronized (this) {
+        sinceCompaction = null;
+      }
+    }
+  }
+  
+  static byte[] encode(String username, int rating) {
+    return (username + '\t' + rating + '\n').getBytes(StandardCharsets.UTF_8);
+  }
+  
+  //a failed batch goes back in, unless the user has changed again since
+  private synchronized void requeue(Map<String, Integer> batch) {
+    for (Map.Entry<String, Integer> entry : batch.entrySet())
+      pending.putIfAbsent(entry.getKey(), entry.getValue());
+  }
+  
+  @Override
+  public void run() {
+    while (isrunning) {
+      try {
+        Map<String, Integer> batch = awaitBatch();
+        if (batch == null)
+          continue;
+        try {
+          store.updateRatings(batch);
+          confirm();
+        } catch (SQLException except) {
+          System.err.println("Failed to store " + batch.size()
+                  + " ratings, retrying: " + except.getMessage());
+          requeue(batch);
+        } catch (IOException except) {
+          System.err.println("Failed to compact rating journal");
+        }
+      } catch (InterruptedException except) {
+        System.out.println("Interrupted");
+      }
+    }
+  }
+}
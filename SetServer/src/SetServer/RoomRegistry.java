@@ -0,0 +1,60 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package SetServer;
+
+import SetServer.src.gamebackend.GameRoom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+  
+/**
+ * The open game rooms by room number
+ * Any lane can add, look up and remove rooms without a lock around the
+ * registry: lookups never block, and the numbers of removed rooms go on a
+ * lock-free free-list and are handed out again, oldest first, before new
+ * ones are. Adding a room publishes it, so whatever the creating thread did
+ * to it beforehand is visible to every lane that looks it up.
+ * Safe to read from any lane.
+ */
+public class RoomRegistry {
+  private final ConcurrentMap<Integer, GameRoom> rooms;
+  private final ConcurrentLinkedQueue<Integer> freeNumbers;
+  private final AtomicInteger nextNumber;
+  
+  public RoomRegistry() {
+    rooms = new ConcurrentHashMap<>();
+    freeNumbers = new ConcurrentLinkedQueue<>();
+    nextNumber = new AtomicInteger();
+  }
+  
+  //returns the room's number
+  public int add(GameRoom room) {
+    Integer free = freeNumbers.poll();
+    int number = free != null ? free : nextNumber.getAndIncrement();
+    rooms.put(number, room);
+    return number;
+  }
+  
+  //null if there is no such room
+  public GameRoom get(int number) {
+    return rooms.get(number);
+  }
+  
+  //only removes the room if number still belongs to it, so a command that
+  //is late for a closed room can't close the one that got its number
+  public boolean remove(int number, GameRoom room) {
+    if (!rooms.remove(number, room))
+      return false;
+    freeNumbers.add(number);
+    return true;
+  }
+  
+  public int getNumRooms() {
+    return rooms.size();
+  }
+}
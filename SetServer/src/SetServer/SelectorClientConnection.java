@@ -0,0 +1,291 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package SetServer;
+
+import SetProtocol.BinaryFrames;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Non-blocking counterpart of ClientConnection, owned by a single SelectorLoop
+ * Incoming bytes are framed on '\n' (or as binary frames once the client
+ * has asked for them) straight out of the read buffer and fed into
+ * incomingMessages exactly like ClientConnection does.
+ * Outgoing messages are queued in an OutboundQueue by send() and written by
+ * the loop whenever the channel is writable, as one gathering write of
+ * everything pending.
+ */
+public class SelectorClientConnection implements ClientEndpoint {
+  static final int READ_BUFFER_SIZE = 1024;
+  static final int MAX_MESSAGE_LENGTH = 64 * 1024;
+  static final int MAX_FRAMES_PER_WRITE = 64;
+  
+  final int clientID;
+  final SocketChannel channel;
+  final SelectorLoop loop;
+  final BlockingQueue<Message> incomingMessages;
+  final OutboundQueue outbound;
+  //set while this connection is waiting in the loop's write request queue
+  final AtomicBoolean writeRequested;
+  //frames taken from outbound that the socket has not fully accepted yet
+  private final List<byte[]> drained;
+  private ByteBuffer[] writeBuffers;
+  private int firstUnwritten;
+  private ByteBuffer readBuffer;
+  private SelectionKey key;
+  private volatile boolean closed;
+  //framing of what the client sends, only touched by the loop
+  private boolean binaryIn;
+  //framing of what we send, only touched by the ServerMessenger
+  private WireProtocol protocol;
+  
+  public SelectorClientConnection(int clientID,
+                                  SocketChannel channel,
+                                  SelectorLoop loop,
+                                  BlockingQueue<Message> incomingMessages,
+                                  OutboundQueue outbound) {
+    this.clientID = clientID;
+    this.channel = channel;
+    this.loop = loop;
+    this.incomingMessages = incomingMessages;
+    this.outbound = outbound;
+    writeRequested = new AtomicBoolean(false);
+    drained = new ArrayList<>();
+    writeBuffers = new ByteBuffer[0];
+    firstUnwritten = 0;
+    readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    closed = false;
+    binaryIn = false;
+    protocol = WireProtocol.TEXT;
+  }
+  
+  @Override
+  public int getClientID() {
+    return clientID;
+  }
+  
+  //may be called from any thread, the actual write happens on the loop
+  @Override
+  public void send(Message message) {
+    if (closed)
+      return;
+    //the frames after a switch are only readable if it reaches the client
+    boolean queued = outbound.offer(message.getFrame(protocol),
+            message.switchTo != null);
+    if (queued && message.switchTo != null)
+      protocol = message.switchTo;
+    if (!queued) {
+      System.err.println("Client with id: " + clientID
+              + " fell behind, disconnecting");
+      close();
+      return;
+    }
+    if (writeRequested.compareAndSet(false, true))
+      loop.requestWrite(this);
+  }
+  
+  @Override
+  public void close() {
+    loop.requestClose(this);
+  }
+  
+  //everything below is only called from the owning SelectorLoop
+  void register(Selector selector) throws ClosedChannelException {
+    key = channel.register(selector, SelectionKey.OP_READ, this);
+    System.out.println("Connected to client with ID: " + clientID);
+    //messages may have been queued before the loop got to the registration
+    if (!outbound.isEmpty())
+      handleWrite();
+  }
+  
+  void handleRead() {
+    if (outbound.isCongested()) {
+      key.interestOps(interestOps(firstUnwritten != writeBuffers.length));
+      return;
+    }
+    int numRead;
+    try {
+      numRead = channel.read(readBuffer);
+    } catch (IOException except) {
+      numRead = -1;
+    }
+    if (numRead < 0) {
+      handleDisconnection();
+      return;
+    }
+    deliverBuffered();
+  }
+  
+  //delivers every complete message in the read buffer, keeps the partial
+  //one for the next read; stops early once the client is congested and
+  //keeps the rest until it isn't
+  private void deliverBuffered() {
+    readBuffer.flip();
+    byte[] bytes = readBuffer.array();
+    int limit = readBuffer.limit();
+    int start = 0;
+    boolean congested = false;
+    while (start != limit) {
+      if (outbound.isCongested()) {
+        congested = true;
+        break;
+      }
+      int next = binaryIn ? deliverFrame(bytes, start, limit)
+                          : deliverLine(bytes, start, limit);
+      if (next < 0) {
+        System.err.println("Malformed frame from client id: " + clientID);
+        handleDisconnection();
+        return;
+      }
+      if (next == start)
+        break;
+      start = next;
+    }
+    readBuffer.position(start);
+    readBuffer.compact();
+    
+    //a single message did not fit, grow the buffer up to the limit
+    if (!congested && !readBuffer.hasRemaining()) {
+      if (readBuffer.capacity() >= MAX_MESSAGE_LENGTH) {
+        System.err.println("Message too long from client id: " + clientID);
+        handleDisconnection();
+        return;
+      }
+      ByteBuffer larger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+      readBuffer.flip();
+      larger.put(readBuffer);
+      readBuffer = larger;
+    }
+  }
+  
+  //writes as much as the socket takes, asks for OP_WRITE for the rest
+  void handleWrite() {
+    writeRequested.set(false);
+    if (closed || key == null)
+      return;
+    try {
+      while (true) {
+        if (firstUnwritten == writeBuffers.length && !drainOutbound()) {
+          key.interestOps(interestOps(false));
+          //what was read while the client was congested
+          if (readBuffer.position() != 0)
+            deliverBuffered();
+          return;
+        }
+        channel.write(writeBuffers, firstUnwritten,
+                writeBuffers.length - firstUnwritten);
+        while (firstUnwritten != writeBuffers.length
+                && !writeBuffers[firstUnwritten].hasRemaining())
+          ++firstUnwritten;
+        if (firstUnwritten != writeBuffers.length) {
+          key.interestOps(interestOps(true));
+          return;
+        }
+      }
+    } catch (IOException except) {
+      System.err.println("Failed to send message to client with ID: "
+              + clientID);
+      handleDisconnection();
+    }
+  }
+  
+  //BACKPRESSURE: a client we can't write to fast enough isn't read from
+  //either until its queue has room again, so it can't keep adding to its
+  //own traffic; send() asks for a write, which gets us here, whenever a
+  //frame is queued
+  private int interestOps(boolean writing) {
+    int ops = outbound.isCongested() ? 0 : SelectionKey.OP_READ;
+    return writing ? ops | SelectionKey.OP_WRITE : ops;
+  }
+  
+  void handleDisconnection() {
+    if (closed)
+      return;
+    closed = true;
+    System.out.println("Client with id: " + clientID + " disconnected");
+    if (key != null)
+      key.cancel();
+    try {
+      channel.close();
+    } catch (IOException except) {
+      System.err.println("Problem closing channel of client id: " + clientID);
+    }
+    outbound.clear();
+    deliver("D");
+  }
+  
+  //returns where the next message starts, start itself if the line is
+  //not complete yet
+  private int deliverLine(byte[] bytes, int start, int limit) {
+    for (int i = start; i != limit; ++i) {
+      if (bytes[i] == '\n') {
+        int lineEnd = i;
+        if (lineEnd > start && bytes[lineEnd - 1] == '\r')
+          --lineEnd;
+        String line = new String(bytes, start, lineEnd - start, WIRE_CHARSET);
+        //everything after the request is framed in binary
+        if (line.equals(BinaryFrames.NEGOTIATE))
+          binaryIn = true;
+        deliver(line);
+        return i + 1;
+      }
+    }
+    return start;
+  }
+  
+  //same as deliverLine for a binary frame, -1 if it is malformed
+  private int deliverFrame(byte[] bytes, int start, int limit) {
+    int header = BinaryFrames.headerLength(bytes, start, limit);
+    if (header == 0)
+      return start;
+    if (header < 0)
+      return -1;
+    int length = BinaryFrames.readLength(bytes, start);
+    //the whole frame has to fit in the read buffer
+    if (length > MAX_MESSAGE_LENGTH - header)
+      return -1;
+    if (limit - start - header < length)
+      return start;
+    String message = BinaryFrames.decode(bytes, start + header, length);
+    if (message == null)
+      return -1;
+    deliver(message);
+    return start + header + length;
+  }
+  
+  //wraps the next batch of frames for a gathering write, false if none
+  private boolean drainOutbound() {
+    drained.clear();
+    int numFrames = outbound.drainTo(drained, MAX_FRAMES_PER_WRITE);
+    if (numFrames == 0)
+      return false;
+    if (writeBuffers.length != numFrames)
+      writeBuffers = new ByteBuffer[numFrames];
+    for (int i = 0; i != numFrames; ++i)
+      writeBuffers[i] = ByteBuffer.wrap(drained.get(i));
+    firstUnwritten = 0;
+    return true;
+  }
+  
+  private void deliver(String message) {
+    try {
+      incomingMessages.put(new Message(clientID, message,
+              System.nanoTime()));
+    } catch (InterruptedException except) {
+      System.err.println("Interrupted delivering message from client id: "
+              + clientID);
+    }
+  }
+}
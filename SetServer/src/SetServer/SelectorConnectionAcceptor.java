@@ -0,0 +1,87 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package SetServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Non-blocking replacement for ServerConnectionAcceptor
+ * Accepts on its own selector and hands every new channel to one of the
+ * SelectorLoops round robin, so no thread is spent per client.
+ */
+public class SelectorConnectionAcceptor extends Thread {
+  Boolean isrunning;
+  final ConcurrentMap<Integer, ClientEndpoint> sockets;
+  final BlockingQueue<Message> incomingMessages;
+  final int numLoops;
+  final OverflowPolicy overflowPolicy;
+  
+  public SelectorConnectionAcceptor(Boolean isrunning,
+                                    ConcurrentMap<Integer, ClientEndpoint> sockets,
+                                    BlockingQueue<Message> incomingMessages,
+                                    int numLoops,
+                                    OverflowPolicy overflowPolicy) {
+    super("SelectorConnectionAcceptor");
+    this.isrunning = isrunning;
+    this.sockets = sockets;
+    this.incomingMessages = incomingMessages;
+    this.numLoops = numLoops;
+    this.overflowPolicy = overflowPolicy;
+  }
+  
+  @Override
+  public void run() {
+    int totalClientCount = 0;
+    Selector acceptSelector;
+    ServerSocketChannel sChannel;
+    SelectorLoop[] loops = new SelectorLoop[numLoops];
+    try {
+      acceptSelector = Selector.open();
+      sChannel = ServerSocketChannel.open();
+      sChannel.bind(new InetSocketAddress(10000));
+      sChannel.configureBlocking(false);
+      sChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+      for (int i = 0; i != numLoops; ++i) {
+        loops[i] = new SelectorLoop(i, isrunning);
+        loops[i].start();
+      }
+    } catch (IOException except) {
+      System.err.println("Failed to listen on port 10000!");
+      return;
+    }
+    
+    while (isrunning) {
+      try {
+        acceptSelector.select();
+        acceptSelector.selectedKeys().clear();
+        SocketChannel cChannel;
+        while ((cChannel = sChannel.accept()) != null) {
+          cChannel.configureBlocking(false);
+          SelectorLoop loop = loops[totalClientCount % numLoops];
+          SelectorClientConnection connection;
+          connection = new SelectorClientConnection(totalClientCount,
+                                                    cChannel,
+                                                    loop,
+                                                    incomingMessages,
+                                                    new OutboundQueue(overflowPolicy));
+          sockets.put(totalClientCount, connection);
+          ++totalClientCount;
+          loop.register(connection);
+        }
+      } catch (IOException except) {
+        System.err.println("Failed to accept incoming connection!");
+      }
+    }
+  }
+}
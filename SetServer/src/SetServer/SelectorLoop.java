@@ -0,0 +1,92 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package SetServer;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One thread multiplexing reads and writes for many SelectorClientConnections
+ * Other threads never touch the selector directly, they queue requests here
+ * and wake the loop up.
+ */
+public class SelectorLoop extends Thread {
+  Boolean isrunning;
+  final Selector selector;
+  final Queue<SelectorClientConnection> pendingRegistrations;
+  final Queue<SelectorClientConnection> pendingWrites;
+  final Queue<SelectorClientConnection> pendingCloses;
+  
+  public SelectorLoop(int loopID, Boolean isrunning) throws IOException {
+    super("SelectorLoop: " + loopID);
+    this.isrunning = isrunning;
+    selector = Selector.open();
+    pendingRegistrations = new ConcurrentLinkedQueue<>();
+    pendingWrites = new ConcurrentLinkedQueue<>();
+    pendingCloses = new ConcurrentLinkedQueue<>();
+  }
+  
+  void register(SelectorClientConnection connection) {
+    pendingRegistrations.add(connection);
+    selector.wakeup();
+  }
+  
+  void requestWrite(SelectorClientConnection connection) {
+    pendingWrites.add(connection);
+    selector.wakeup();
+  }
+  
+  void requestClose(SelectorClientConnection connection) {
+    pendingCloses.add(connection);
+    selector.wakeup();
+  }
+  
+  private void processRequests() {
+    SelectorClientConnection connection;
+    while ((connection = pendingRegistrations.poll()) != null) {
+      try {
+        connection.register(selector);
+      } catch (ClosedChannelException except) {
+        connection.handleDisconnection();
+      }
+    }
+    while ((connection = pendingWrites.poll()) != null)
+      connection.handleWrite();
+    while ((connection = pendingCloses.poll()) != null)
+      connection.handleDisconnection();
+  }
+  
+  @Override
+  public void run() {
+    while (isrunning) {
+      try {
+        selector.select();
+      } catch (IOException except) {
+        System.err.println("Selector failure in " + getName());
+        continue;
+      }
+      processRequests();
+      
+      Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+      while (keys.hasNext()) {
+        SelectionKey key = keys.next();
+        keys.remove();
+        SelectorClientConnection connection =
+                (SelectorClientConnection) key.attachment();
+        if (key.isValid() && key.isReadable())
+          connection.handleRead();
+        if (key.isValid() && key.isWritable())
+          connection.handleWrite();
+      }
+    }
+  }
+}
@@ -11,23 +11,36 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Listener that will handle all incoming connections
+ * used for both THREAD_PER_CLIENT and VIRTUAL_THREADS, only the thread
+ * factory and the executor running the clients' flushes differ
  * @author Harrison
  */
 public class ServerConnectionAcceptor extends Thread {
   Boolean isrunning;
-  final ConcurrentMap<Integer, Socket> sockets;
+  final ConcurrentMap<Integer, ClientEndpoint> sockets;
   final BlockingQueue<Message> incomingMessages;
+  final ThreadFactory threadFactory;
+  final Executor writerExecutor;
+  final OverflowPolicy overflowPolicy;
   
   public ServerConnectionAcceptor(Boolean isrunning,
-                                  ConcurrentMap<Integer, Socket> sockets,
-                                  BlockingQueue<Message> incomingMessages) {
+                                  ConcurrentMap<Integer, ClientEndpoint> sockets,
+                                  BlockingQueue<Message> incomingMessages,
+                                  ThreadFactory threadFactory,
+                                  Executor writerExecutor,
+                                  OverflowPolicy overflowPolicy) {
     super("ServerConnectionAcceptor");
     this.isrunning= isrunning;
     this.sockets = sockets;
     this.incomingMessages = incomingMessages;
+    this.threadFactory = threadFactory;
+    this.writerExecutor = writerExecutor;
+    this.overflowPolicy = overflowPolicy;
   }
   
   @Override
@@ -43,12 +56,15 @@ public class ServerConnectionAcceptor extends Thread {
       try {
         Socket cSocket = null;  
         cSocket = sSocket.accept();
-        sockets.put(totalClientCount, cSocket);
         ClientConnection connection;
         connection = new ClientConnection(totalClientCount,
                                           isrunning,
                                           cSocket,
-                                          incomingMessages);
+                                          incomingMessages,
+                                          threadFactory,
+                                          writerExecutor,
+                                          new OutboundQueue(overflowPolicy));
+        sockets.put(totalClientCount, connection);
         ++totalClientCount;
         connection.start();
       } catch (IOException except) {
@@ -1,35 +1,34 @@
 package SetServer;
 
-import java.io.DataOutputStream;
-import java.io.IOException;
-import java.net.Socket;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentMap;
 
 /**
  * Singleton that handles messaging all connections
+ * It only routes: each ClientEndpoint buffers and writes its own messages, so
+ * a slow socket never holds up delivery to the other clients.
  * @author Harrison
  */
 public class ServerMessenger extends Thread {
   Boolean isrunning;
-  final ConcurrentMap<Integer, Socket> sockets;
+  final ConcurrentMap<Integer, ClientEndpoint> sockets;
   final BlockingQueue<Message> outgoingMessages;
   
   public ServerMessenger(Boolean isrunning,
-                         ConcurrentMap<Integer, Socket> sockets,
+                         ConcurrentMap<Integer, ClientEndpoint> sockets,
                          BlockingQueue<Message> outgoingMessages) {
     this.isrunning = isrunning;
     this.sockets = sockets;
     this.outgoingMessages = outgoingMessages;
   }
-  void sendMessage(Socket s, Message m) {
-    try {
-      DataOutputStream ostream = new DataOutputStream(s.getOutputStream());
-      ostream.writeBytes(m.message + '\n');
-    } catch (IOException except) {
-      System.err.println("Failed to create output stream for socket "
-              + "or send message to client with ID: " + m.clientID);
+  //the client may already have disconnected by the time its message is sent
+  void sendMessage(int clientID, Message m) {
+    ClientEndpoint endpoint = sockets.get(clientID);
+    if (endpoint == null) {
+      System.err.println("No connection for client with ID: " + clientID);
+      return;
     }
+    endpoint.send(m);
   }
   
   @Override
@@ -40,13 +39,18 @@ public class ServerMessenger extends Thread {
         Message outgoingMessage = outgoingMessages.take();
         
         //value of -1 means send to everyone
+        //value of -2 means send to everyone in clientIDs
         //any value >= 0 will be to a specific client
-        if (outgoingMessage.clientID == -1) {
-          for (Socket out : sockets.values()) {
-            sendMessage(out, outgoingMessage);
+        if (outgoingMessage.clientID == Message.EVERYONE) {
+          for (ClientEndpoint out : sockets.values()) {
+            out.send(outgoingMessage);
+          }
+        } else if (outgoingMessage.clientID == Message.RECIPIENTS) {
+          for (int recipient : outgoingMessage.clientIDs) {
+            sendMessage(recipient, outgoingMessage);
           }
         } else {
-          sendMessage(sockets.get(outgoingMessage.clientID), outgoingMessage);
+          sendMessage(outgoingMessage.clientID, outgoingMessage);
         }
         
       } catch (InterruptedException ex) {
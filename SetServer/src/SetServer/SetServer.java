@@ -6,340 +6,637 @@
  *                        |
  * spawns multiple threads (one for each client connection)
  *
- * users - hashMap keying users by their client ID, 
+ * ServerLogic runs on DispatchLanes: runServer only routes each command to
+ * - the lobby lane (login, registration, disconnection, create, lobby chat)
+ * - the room shard owning the room the command is about (join, ready, set,
+ *   exit, game chat); rooms are assigned to shards by room number, so every
+ *   command for one room runs on one thread and rooms run in parallel
+ * One client's commands still run one at a time and in order
+ * (ClientCommands), each routed once the one before it has run
+ *
+ * users - UserRegistry keying users by their client ID and username,
            managed by SetServer functions
          - it is always a 1-1 mapping of clientID to a User because when a user
-           logs out, the user removed from the map
- * gameRooms - hashMap mapping room numbers to actual rooms
- * sockets - maps clientIDs to their sockets
+           logs out, the user removed from the registry
+ * gameRooms - RoomRegistry mapping room numbers to actual rooms, numbers
+             of closed rooms are reused
+ * lobby - LobbyListing, what the clients in the lobby know of the rooms;
+           room changes are marked from any lane and flushed as one delta
+           per LOBBY_WINDOW_MILLIS by the lobby lane. Clients in a room
+           don't get deltas, they get a new snapshot when they leave it
+ * sockets - maps clientIDs to their connections (ClientEndpoint), either
+             ClientConnection threads or SelectorClientConnections depending
+             on the ConnectionMode the server was started with
  *
  *
  */
 
 package SetServer;
 
-import java.net.Socket;
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.sql.Statement;
-import java.util.Map;
-import java.util.HashMap;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadFactory;
 import SetServer.src.gamebackend.*;
+import SetProtocol.BinaryFrames;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.SplittableRandom;
 
-public class SetServer {
+public class SetServer implements CommandHandler {
+  
+  //rating lost by a player who leaves or disconnects mid-game
+  static final int FORFEIT_PENALTY = 10;
+  //how long a room collects claims before awarding the earliest read valid
+  //one, so claims from different connection threads are judged in the
+  //order they arrived rather than the order they were queued; 0 resolves
+  //each claim as soon as it is processed
+  static final long ARBITRATION_NANOS = 2_000_000L;
+  //longest tick a room may ask for, every claim waits up to a tick
+  static final int MAX_TICK_MILLIS = 100;
+  //how long room changes are collected into one lobby delta
+  static final long LOBBY_WINDOW_MILLIS = 50;
   
   Boolean isrunning;
-  Connection dbConnection = null;
-  final Map<Integer, User> users;
-  final Map<Integer, GameRoom> gameRooms;
-  final ConcurrentMap<Integer, Socket> sockets;
+  final CachingUserStore userCache;
+  final AsyncUserStore userStore;
+  final RatingJournal ratingJournal;
+  final UserRegistry users;
+  final RoomRegistry gameRooms;
+  final LobbyListing lobby;
+  final ConcurrentMap<Integer, ClientEndpoint> sockets;
   final BlockingQueue<Message> incomingMessages;
   final BlockingQueue<Message> outgoingMessages;
-  ServerConnectionAcceptor scAcceptor;
+  Thread scAcceptor;
   ServerMessenger sMessenger;
-  int numRooms;
+  //only used by the runServer thread
+  final CommandParser parser;
+  long receivedAt; // of the message being parsed
+  final Map<Integer, ClientCommands> clientCommands;
+  //closes arbitration windows by handing the room back to its shard, and
+  //lobby windows by handing the listing to the lobby lane
+  final ScheduledExecutorService claimWindows;
+  final DispatchLane lobbyLane;
+  final DispatchLane[] roomShards;
+  //one per shard, only used from that shard, seeds each game it starts
+  final SplittableRandom[] shardRandoms;
  
-  public SetServer() {
+  public SetServer(UserStore userStore) {
+    this(ConnectionMode.THREAD_PER_CLIENT, OverflowPolicy.DISCONNECT,
+            userStore, 1);
+  }
+  
+  //numDatabaseThreads should match the size of userStore's connection pool
+  public SetServer(ConnectionMode mode, OverflowPolicy overflowPolicy,
+                   UserStore userStore, int numDatabaseThreads) {
     isrunning = true;
-    users = new HashMap<>();
-    gameRooms = new HashMap<>();
+    userCache = new CachingUserStore(userStore,
+            CachingUserStore.DEFAULT_CAPACITY);
+    this.userStore = new AsyncUserStore(userCache, numDatabaseThreads);
+    ratingJournal = new RatingJournal(isrunning, userCache);
+    users = new UserRegistry();
+    gameRooms = new RoomRegistry();
+    lobby = new LobbyListing(gameRooms);
     sockets = new ConcurrentHashMap<>();
     incomingMessages = new LinkedBlockingQueue<>();
     outgoingMessages = new LinkedBlockingQueue<>();
-    scAcceptor = new ServerConnectionAcceptor(isrunning,
-                                              sockets,
-                                              incomingMessages);
+    if (mode == ConnectionMode.SELECTOR) {
+      scAcceptor = new SelectorConnectionAcceptor(isrunning,
+              sockets,
+              incomingMessages,
+              Runtime.getRuntime().availableProcessors(),
+              overflowPolicy);
+    } else {
+      ThreadFactory threads = ConnectionThreads.forMode(mode);
+      scAcceptor = new ServerConnectionAcceptor(isrunning,
+              sockets,
+              incomingMessages,
+              threads,
+              ConnectionThreads.writerExecutor(threads),
+              overflowPolicy);
+    }
     sMessenger = new ServerMessenger(isrunning,
                                      sockets,
                                      outgoingMessages);
-    numRooms = 0;
+    parser = new CommandParser();
+    clientCommands = new HashMap<>();
+    claimWindows = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "ClaimWindows");
+      thread.setDaemon(true);
+      return thread;
+    });
+    lobbyLane = new DispatchLane("LobbyLane", isrunning);
+    roomShards = new DispatchLane[Runtime.getRuntime().availableProcessors()];
+    for (int i = 0; i != roomShards.length; ++i)
+      roomShards[i] = new DispatchLane("RoomShard: " + i, isrunning);
+    SplittableRandom seeds = new SplittableRandom();
+    shardRandoms = new SplittableRandom[roomShards.length];
+    for (int i = 0; i != shardRandoms.length; ++i)
+      shardRandoms[i] = seeds.split();
   }
   
   public void runServer() {
+    try {
+      ratingJournal.open();
+    } catch (IOException except) {
+      System.err.println("Failed to open rating journal, "
+              + "unflushed ratings will be lost on a crash");
+      ratingJournal.start();
+    }
     scAcceptor.start();
     sMessenger.start();
+    lobbyLane.start();
+    for (DispatchLane shard : roomShards)
+      shard.start();
     while (isrunning) {
       try {
         Message incomingMessage = incomingMessages.take();
-        String [] messagePieces;
-        messagePieces = incomingMessage.message.split("~");
-        try {
-          switch(messagePieces[0].charAt(0)) {
-            case 'L': 
-              pLogin(incomingMessage.clientID, messagePieces); 
-              break;
-            case 'R':
-              pRegistration(incomingMessage.clientID, messagePieces);
-              break;
-            case 'D':
-              pDisconnection(incomingMessage.clientID, messagePieces);
-              break;
-            case 'N':
-              pCreateGame(incomingMessage.clientID, messagePieces);
-              break;
-            case 'J':
-              pJoinGame(incomingMessage.clientID, messagePieces);
-              break;
-            case 'G':
-              pStartGame(incomingMessage.clientID, messagePieces);
-              break;
-            case 'S':
-              pSetRequest(incomingMessage.clientID, messagePieces);
-              break;
-            case 'E':
-              pExitGame(incomingMessage.clientID, messagePieces);
-              break;
-            case 'C':
-              pLobbyChat(incomingMessage.clientID, messagePieces);
-              break;
-            case 'T':
-              pGameChat(incomingMessage.clientID, messagePieces);
-              break;
-          }
-        } catch (SQLException e) {
-          System.out.println("Database access error");
-        }
+        receivedAt = incomingMessage.receivedAt;
+        //calls one of the CommandHandler methods below, which hand the
+        //command to its lane
+        parser.parse(incomingMessage.clientID, incomingMessage.message, this);
       } catch (InterruptedException except) {
         System.out.println("Interrupted");
       }
     }
   }
+  
+  //the room a command from clientID is about as it is routed, -1 if none;
+  //the client's earlier commands have run by then, so only another
+  //client's command (or a disconnection) can have moved it, and the
+  //handler drops the command if that happened
+  int routedRoom(int clientID) {
+    User user = users.get(clientID);
+    return user == null ? -1 : Math.max(user.currentGameRoom, -1);
+  }
+  
+  //commands about the room a client is in go to that room's shard,
+  //anything we can't place in a room to the lobby
+  DispatchLane roomLane(int roomNumber) {
+    return roomNumber >= 0 ? shardFor(roomNumber) : lobbyLane;
+  }
+  
+  //the client's User if it is still in the room its command was routed
+  //to, so only that room's shard ever touches the room; null otherwise
+  User inRoom(int clientID, int roomNumber) {
+    User user = users.get(clientID);
+    if (user == null || roomNumber < 0
+            || user.currentGameRoom != roomNumber) {
+      System.err.println("Dropped a command for room " + roomNumber
+              + " from client " + clientID);
+      return null;
+    }
+    return user;
+  }
+  
+  DispatchLane shardFor(int roomNumber) {
+    return roomShards[Math.floorMod(roomNumber, roomShards.length)];
+  }
+  
+  //only call from the room's shard
+  long nextSeed(int roomNumber) {
+    return shardRandoms[Math.floorMod(roomNumber, shardRandoms.length)]
+            .nextLong();
+  }
+  
+  interface Command {
+    void run() throws InterruptedException;
+  }
+  
+  interface RoomCommand {
+    void run(int roomNumber) throws InterruptedException;
+  }
+  
+  interface Query {
+    CompletionStage<?> run() throws InterruptedException;
+  }
+  
+  interface Callback<T> {
+    void run(T result) throws InterruptedException;
+  }
+  
+  //queues a follow-up command on another lane, e.g. the room half of a
+  //lobby command
+  void runOn(DispatchLane lane, Command command) {
+    lane.execute(() -> {
+      try {
+        command.run();
+      } catch (InterruptedException except) {
+        System.out.println("Interrupted");
+      }
+    });
+  }
+  
+  //runs command on lane after clientID's earlier commands
+  void inOrder(int clientID, DispatchLane lane, Command command) {
+    commandsOf(clientID).submit(new ClientCommands.Step() {
+      @Override
+      public Executor lane() {
+        return lane;
+      }
+      
+      @Override
+      public CompletionStage<?> run() throws InterruptedException {
+        command.run();
+        return null;
+      }
+    });
+  }
+  
+  //same for a command about the room the client is in once its turn
+  //comes, run on that room's shard (the lobby lane if it is in none)
+  void inOrder(int clientID, RoomCommand command) {
+    commandsOf(clientID).submit(new ClientCommands.Step() {
+      int roomNumber;
+      
+      @Override
+      public Executor lane() {
+        roomNumber = routedRoom(clientID);
+        return roomLane(roomNumber);
+      }
+      
+      @Override
+      public CompletionStage<?> run() throws InterruptedException {
+        command.run(roomNumber);
+        return null;
+      }
+    });
+  }
+  
+  //same for a database command on the lobby lane, the client's next
+  //command waits for its callback
+  void inOrderAfter(int clientID, Query command) {
+    commandsOf(clientID).submit(new ClientCommands.Step() {
+      @Override
+      public Executor lane() {
+        return lobbyLane;
+      }
+      
+      @Override
+      public CompletionStage<?> run() throws InterruptedException {
+        return command.run();
+      }
+    });
+  }
+  
+  //only called by the runServer thread
+  ClientCommands commandsOf(int clientID) {
+    return clientCommands.computeIfAbsent(clientID,
+            id -> new ClientCommands());
+  }
+  
+  //continues on lane once a database call finishes; on failure the client
+  //gets an X~ error instead of the callback
+  //completes once the callback has run
+  <T> CompletableFuture<T> onComplete(CompletableFuture<T> query,
+                                      DispatchLane lane, int clientID,
+                                      Callback<T> callback) {
+    return query.whenCompleteAsync((result, error) -> {
+      try {
+        if (error != null) {
+          System.out.println("Database access error: " + error.getCause());
+          outgoingMessages.put(new Message(clientID,
+                  "X~Database unavailable, try again"));
+        } else {
+          callback.run(result);
+        }
+      } catch (InterruptedException except) {
+        System.out.println("Interrupted");
+      }
+    }, lane);
+  }
+  
+  //CommandHandler: each command runs on its lane, room commands on the
+  //shard of the room they are about, everything else on the lobby lane,
+  //after the client's earlier commands
+  @Override
+  public void login(int clientID, String username, String password) {
+    inOrderAfter(clientID, () -> pLogin(clientID, username, password));
+  }
+  
+  @Override
+  public void register(int clientID, String username, String password) {
+    inOrderAfter(clientID, () -> pRegistration(clientID, username,
+            password));
+  }
+  
+  //the connection reports nothing after D, so the client's queue goes too
+  @Override
+  public void disconnect(int clientID) {
+    inOrder(clientID, lobbyLane, () -> pDisconnection(clientID));
+    clientCommands.remove(clientID);
+  }
+  
+  @Override
+  public void createGame(int clientID, String roomName, int maxNumPlayers,
+                         int tickMillis) {
+    inOrder(clientID, lobbyLane, () -> pCreateGame(clientID, roomName,
+            maxNumPlayers, tickMillis));
+  }
+  
+  @Override
+  public void joinGame(int clientID, int roomNumber) {
+    inOrder(clientID, shardFor(roomNumber),
+            () -> pJoinGame(clientID, roomNumber));
+  }
+  
+  @Override
+  public void startGame(int clientID) {
+    inOrder(clientID, roomNumber -> pStartGame(clientID, roomNumber));
+  }
+  
+  @Override
+  public void claimSet(int clientID, int card1, int card2, int card3,
+                       int version) {
+    long received = receivedAt;
+    inOrder(clientID, roomNumber -> pSetRequest(clientID, roomNumber,
+            card1, card2, card3, version, received));
+  }
+  
+  @Override
+  public void exitGame(int clientID) {
+    inOrder(clientID, roomNumber -> pExitGame(clientID, roomNumber));
+  }
+  
+  @Override
+  public void lobbyChat(int clientID, String message) {
+    inOrder(clientID, lobbyLane, () -> pLobbyChat(clientID, message));
+  }
+  
+  @Override
+  public void gameChat(int clientID, String message) {
+    inOrder(clientID, roomNumber -> pGameChat(clientID, roomNumber,
+            message));
+  }
+  
+  @Override
+  public void negotiate(int clientID, int version) {
+    inOrder(clientID, lobbyLane, () -> pNegotiate(clientID, version));
+  }
+  
+  @Override
+  public void malformed(int clientID, char command, String error) {
+    System.err.println(error);
+    //a registration can only be malformed by a '~' in the name or password
+    if (command == 'R')
+      inOrder(clientID, lobbyLane, () -> outgoingMessages.put(
+              new Message(clientID, "X~"
+              + "Invalid username! Probably contains '~'")));
+  }
+  
   /*
    * L~username~password          :Login
    * R~username~password          :Registration
    * D                            :Disconnection
-   * N~[room name]~maxNumPlayers  :Create Game
+   * N~[room name]~maxNumPlayers[~tick ms]
+   *                              :Create Game, a tick makes the room
+   *                               resolve the claims of each tick together
    * J~[room number]              :Join Game
    * G                            :Start Game
-   * S~card1~card2~card3          :Set request
+   * S~card1~card2~card3[~version]:Set request, version is the sequence of
+   *                               the last board message the player saw
    * E                            :Exit Game
    * C~Message                    :Lobby Chat
    * T~Message                    :Game Chat
+   * B~version                    :Switch to binary framing
    *
    */
   //p stands for process
   
-  //First three are functions that require SQL connection
-  //have to connect and close after each query because of connection timeout
+  //First two are functions that require the database; the query runs on
+  //the userStore's threads and the rest continues back on the lobby lane
   //accepts message: L~username~password
   //sends either an error to client (X~[message])
   //or a request to update everyone's lobby tables (P~A~[logged in user])
-  void pLogin (int clientID, String [] messagePieces) 
-          throws SQLException, InterruptedException {
-    
-    if (messagePieces.length != 3) {
-      System.err.println("Message length error!");
-      return;
-    }
-    
-    dbConnection = DriverManager.getConnection(
-            "jdbc:mysql://IP:Port", "userName", "passWord");     
-    Statement stmt = dbConnection.createStatement();
-    ResultSet rs = stmt.executeQuery("INSERT QUERY HERE");
-    
-    if (rs.next()) {
-      outgoingMessages.put(new Message(clientID, "X~Username does not exist"));
-      System.out.println("Username not found!");      
-    } else {
-      
-      //check if user is already online; if user is send error message to client
-      for (User current : users.values()) {
-        if (messagePieces[1].equals(current.username)) {
-          outgoingMessages.put(new Message(clientID, "X~"
-                  + "Username is already online"));
-          return;
-        }
+  CompletionStage<?> pLogin (int clientID, String username,
+                            String password) {
+    return onComplete(userStore.findUser(username), lobbyLane, clientID,
+            record -> {
+      //client left while the query was running
+      if (!sockets.containsKey(clientID))
+        return;
+      if (record == null) {
+        outgoingMessages.put(new Message(clientID, "X~Username does not exist"));
+        System.out.println("Username not found!");
+        return;
       }
-                 
-      //if not already online 
+      
       //verify the password and add the user to the lobby + list of users
-      String password = rs.getString("password");
-      if (messagePieces[2].equals(password)) {
-        int rating = rs.getInt("rating");
-        users.put(clientID, new User(messagePieces[1], -1, rating));
-        outgoingMessages.put(new Message(-1, "P~A~" + messagePieces[1]));
-      } else {
+      //unless the name is already online, in which case send an error
+      if (!password.equals(record.password)) {
         outgoingMessages.put(new Message(clientID, "X~Invalid password"));
+      } else if (users.claim(clientID,
+              new User(username, -1, record.rating))) {
+        outgoingMessages.put(new Message(-1, "P~A~" + username));
+        pSubscribeLobby(clientID);
+      } else {
+        outgoingMessages.put(new Message(clientID, "X~"
+                + "Username is already online"));
       }
-    }
-    
-    stmt.close();
-    dbConnection.close();
+    });
   }
   
   //accepts message: R~Username~Password
   //sends either an error to client (X~[message])
   //or a request to update everyone's lobby tables (P~A~[logged in user])
-  void pRegistration(int clientID, String [] messagePieces) 
-          throws SQLException, InterruptedException {
-    if (messagePieces.length != 3) {
-      System.err.println("Message error!");
-      outgoingMessages.put(new Message(clientID, "X~"
-              + "Invalid username! Probably contains '~'"));
-      return;
-    }
-    
-    dbConnection = DriverManager.getConnection(
-            "jdbc:mysql://IP:Port", "userName", "passWord");     
-    Statement stmt = dbConnection.createStatement();
-    //get the user's data from the database
-    ResultSet rs = stmt.executeQuery("INSERT QUERY HERE");
-    
-    if (rs.next()) {
-      outgoingMessages.put(new Message(clientID, "X~Username already exists!"));
-      System.out.println("Username already exists!");      
-    } else {
-      //insert user into database
-      stmt.executeUpdate("Insert into database");
-      System.out.println("Created new user: " + messagePieces[1]);
-      users.put(clientID, new User(messagePieces[1], -1, 100));
-      outgoingMessages.put(new Message(-1, "P~A~" + messagePieces[1]));
-    }
-    
-    stmt.close();
-    dbConnection.close();
+  CompletionStage<?> pRegistration(int clientID, String username,
+                                   String password) {
+    return onComplete(userStore.createUser(username, password,
+            UserStore.DEFAULT_RATING), lobbyLane, clientID, created -> {
+      if (!created) {
+        outgoingMessages.put(new Message(clientID, "X~Username already exists!"));
+        System.out.println("Username already exists!");
+      } else if (sockets.containsKey(clientID)) {
+        System.out.println("Created new user: " + username);
+        if (users.claim(clientID, new User(username, -1,
+                UserStore.DEFAULT_RATING))) {
+          outgoingMessages.put(new Message(-1, "P~A~" + username));
+          pSubscribeLobby(clientID);
+        } else
+          outgoingMessages.put(new Message(clientID, "X~Already logged in"));
+      }
+    });
   }
   
   //accepts message: D
   //which is sent by each UserConnection thread when attempting to read
-  void pDisconnection(int clientID, String [] messagePieces) 
-          throws InterruptedException, SQLException {
-    
-    if (messagePieces.length != 1) {
-      System.err.println("Disconnection message length error!");
-      return;
-    }
-    sockets.remove(clientID);
-    User disconnected = users.get(clientID);
+  void pDisconnection(int clientID) throws InterruptedException {
+    ClientEndpoint endpoint = sockets.remove(clientID);
+    if (endpoint != null)
+      endpoint.close();
+    User disconnected = users.release(clientID);
     
     //check if disconnected client was in a GameRoom or not
-    //if the client was, message GameRoom and remove the corresponding player
-    //(update username string)
+    //if the client was, have the room's shard remove the corresponding player
     if (disconnected != null) {
+      lobby.unsubscribe(clientID);
       outgoingMessages.put(new Message(-1, "P~R~" + disconnected.username));
       
-      if (disconnected.currentGameRoom >= 0) {
-        GameRoom currentRm = gameRooms.get(disconnected.currentGameRoom);
+      //swapped out, so a join racing us on a shard either got in first
+      //(and the leave queued here runs after it) or can't get in at all
+      int roomNumber = disconnected.leaveForGood();
+      if (roomNumber >= 0) {
+        GameRoom room = gameRooms.get(roomNumber);
+        runOn(shardFor(roomNumber), () -> pLeaveOnDisconnection(clientID,
+                disconnected, roomNumber, room));
+      }
+    }
+  }
+  
+  //room half of pDisconnection, runs on the room's shard
+  //currentRm is the room the user was in when it was queued; if it closed
+  //since, its number may belong to another room that must not be touched
+  //(update username string)
+  void pLeaveOnDisconnection(int clientID, User disconnected, int roomNumber,
+                             GameRoom currentRm) {
+    if (currentRm != null && gameRooms.get(roomNumber) == currentRm) {
+      //left with E before the disconnection, that already did the rest
+      if (!currentRm.removePlayer(clientID))
+        return;
+      if (currentRm.getNumPlayers() > 0) {
+        roomChanged(roomNumber);
+        messageGameRoom(currentRm, "T~" + disconnected.username 
+                + "disconnected");
+        //update users in game room + their scores
+        messageGameRoom(currentRm, currentRm.encodeNamesToString());
         
-        if (currentRm != null) {
-          currentRm.removePlayer(clientID);
-          if (currentRm.getNumPlayers() > 0) {
-            messageGameRoom(currentRm, "T~" + disconnected.username 
-                    + "disconnected");
-            //update users in game room + their scores
-            messageGameRoom(currentRm, currentRm.encodeNamesToString());
-            
-            //if game is in progress; force it to complete
-            //lower disconnected player's score
-            if (currentRm.isPlaying()) {
-              dbConnection = DriverManager.getConnection(
-                      "jdbc:mysql://IP:Port", "userName", "passWord");     
-              Statement stmt = dbConnection.createStatement();
-              ResultSet rs = stmt.executeQuery("INSERT_LOWER_RATING_QUERY HERE");
-              stmt.close();
-              dbConnection.close();
-              
-              //if there's only one player left it's game over
-              if (currentRm.getNumPlayers() == 1) {
-                currentRm.setCompleted();
-                handleGameOver(currentRm);
-              }
-            } else {
-              //the game has not started yet
-              messageGameRoom(currentRm, "T~" + disconnected.username
-                      + "disconnected! "
-                      + "Ready players have been reset, press ready again!");
-              currentRm.resetNumReady();
-              messageGameRoom(currentRm, "G~R");
-            }
-            
-          } else {
-            gameRooms.remove(disconnected.currentGameRoom);
-          }
+        //if game is in progress; force it to complete
+        //lower disconnected player's score
+        if (currentRm.isPlaying()) {
+          forfeit(disconnected);
           
+          //if there's only one player left it's game over
+          if (currentRm.getNumPlayers() == 1) {
+            currentRm.setCompleted();
+            handleGameOver(roomNumber, currentRm);
+          }
         } else {
-          System.err.println("Bug!");
+          //the game has not started yet
+          messageGameRoom(currentRm, "T~" + disconnected.username
+                  + "disconnected! "
+                  + "Ready players have been reset, press ready again!");
+          currentRm.resetNumReady();
+          messageGameRoom(currentRm, "G~R");
         }
+        
+      } else {
+        closeRoom(roomNumber, currentRm);
       }
       
-      users.remove(clientID);
+    } else if (currentRm == null) {
+      System.err.println("Bug!");
     }
   }
   
-  //accepts message: N~[room name]~maxNumPlayers
-  //sends message: A if already in a game room
-  //or U~A~[room number]~[room name]~[current numPlayers]~[max players]~[status]
-  void pCreateGame(int clientID, String [] messagePieces) 
-          throws InterruptedException {
-    if (messagePieces.length != 3) {
-      System.err.println("Create game message length error!");
+  //takes an empty room off the lobby and frees its number, on its shard
+  void closeRoom(int roomNumber, GameRoom room) {
+    gameRooms.remove(roomNumber, room);
+    roomChanged(roomNumber);
+  }
+  
+  //any lane; the lobby hears about it with the next flush, together with
+  //whatever else changes before then
+  void roomChanged(int roomNumber) {
+    if (lobby.markChanged(roomNumber))
+      claimWindows.schedule(() -> runOn(lobbyLane, this::pFlushLobby),
+              LOBBY_WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+  }
+  
+  //sends the lobby snapshot (U~S~version~[room]...) to a client that is
+  //back in the lobby, the deltas after it follow
+  void pSubscribeLobby(int clientID) throws InterruptedException {
+    //disconnected on the way
+    if (users.get(clientID) == null)
       return;
-    }
+    outgoingMessages.put(lobby.subscribe(clientID));
+  }
+  
+  //sends the room changes of the last window to the clients in the lobby
+  //U~D~version~A~[room number]~[room name]~[numPlayers]~[max]~[status]~R~[room number]...
+  void pFlushLobby() throws InterruptedException {
+    String delta = lobby.flush();
+    if (delta != null && lobby.getSubscribers().length > 0)
+      outgoingMessages.put(new Message(lobby.getSubscribers(), delta));
+  }
+  
+  //accepts message: N~[room name]~maxNumPlayers[~tick milliseconds]
+  //a tick makes a room that resolves its claims in batches, see
+  //pResolveClaims
+  //sends message: X~Invalid room tick if the tick is out of range,
+  //A if already in a game room
+  //or the room's names, the lobby hears about it with the next flush
+  void pCreateGame(int clientID, String roomName, int maxNumPlayers,
+                   int tickMillis) throws InterruptedException {
     User rmCreator = users.get(clientID);
-    if (rmCreator.currentGameRoom >= 0) {
+    if (tickMillis < 0 || tickMillis > MAX_TICK_MILLIS) {
+      outgoingMessages.put(new Message(clientID, "X~Invalid room tick"));
+      return;
+    }
+    //a join on a room shard can race us for the user
+    if (!rmCreator.enterRoom(User.ENTERING)) {
       outgoingMessages.put(new Message(clientID, "A"));
       return;
     }
-    rmCreator.currentGameRoom = numRooms;
-    GameRoom newRm = new GameRoom(
-            messagePieces[1], Integer.parseInt(messagePieces[2]));
+    GameRoom newRm = new GameRoom(roomName, maxNumPlayers,
+            TimeUnit.MILLISECONDS.toNanos(tickMillis));
     newRm.addPlayer(clientID, rmCreator.username);
+    //encoded before the room is published, from then on only its shard
+    //may use it
+    String names = newRm.encodeNamesToString();
+    //publish the room before the creator's commands can be routed to it
+    int roomNumber = gameRooms.add(newRm);
+    rmCreator.currentGameRoom = roomNumber;
+    lobby.unsubscribe(clientID);
     //update gameroom window
-    outgoingMessages.put(new Message(clientID, newRm.encodeNamesToString()));
-    //send an update of list of tables to all clients of new table
-    outgoingMessages.put(new Message(-1, 
-            "U~A~"+numRooms+"~"
-            +messagePieces[1]+"~"+newRm.getNumPlayers()
-            +"~"+newRm.getMaxNumPlayers()+"~Inactive"));
+    outgoingMessages.put(new Message(clientID, names));
+    roomChanged(roomNumber);
     outgoingMessages.put(new Message(-1, 
             "C~"+rmCreator.username+"created a game: "+ newRm.getName()));
-    gameRooms.put(numRooms, newRm);
-    ++numRooms;
   }
   
   //accepts a message: J~[room number]
   //sends out "J~I" if game in progress or "J~F" if it's full
   //updates the board's names + scores otherwise
-  void pJoinGame(int clientID, String [] messagePieces) 
+  void pJoinGame(int clientID, int roomNumber)
           throws InterruptedException {
-    if (messagePieces.length != 2) {
-      System.err.println("Join game message length error!");
-      return;
-    }
     User joining = users.get(clientID);
-    if (joining.currentGameRoom >= 0) {
+    //a create on the lobby lane can race us for the user
+    if (!joining.enterRoom(roomNumber)) {
       outgoingMessages.put(new Message(clientID, "A"));
       return;
     }
-    joining.currentGameRoom = Integer.parseInt(messagePieces[1]);
-    GameRoom room = gameRooms.get(joining.currentGameRoom);
+    GameRoom room = gameRooms.get(roomNumber);
     if (room == null) {
       System.err.println("Room does not exist, possible bug!");
-      joining.currentGameRoom = -1;
+      joining.leaveRoom(roomNumber);
     } else {
       if (room.getNumPlayers() < room.getMaxNumPlayers()) {
         if (room.isPlaying()) {
-          joining.currentGameRoom = -1;
+          joining.leaveRoom(roomNumber);
           outgoingMessages.put(new Message(clientID, "J~I"));
         } else {
           room.addPlayer(clientID, joining.username);
+          roomChanged(roomNumber);
+          runOn(lobbyLane, () -> lobby.unsubscribe(clientID));
           messageGameRoom(room, room.encodeNamesToString());
           outgoingMessages.put(new Message(-1, 
                   "L~"+joining.username
-                  +"joined game room: "+ messagePieces[1] 
+                  +"joined game room: "+ roomNumber
                   +" " + room.getName()));
           messageGameRoom(room, "U~A~" + joining.username);
         }
       } else {
-        joining.currentGameRoom = -1;
+        joining.leaveRoom(roomNumber);
         outgoingMessages.put(new Message(clientID, "J~F"));
       }
     }
@@ -352,161 +649,218 @@ public class SetServer {
   //if not everyone is ready, game will not start but rather increment numready
   //sends out messages of T~[username]~is ready!
   //and a message with G~S~board~scores when everyone is ready
-  void pStartGame(int clientID, String [] messagePieces) {
-    if (messagePieces.length != 1)
-      System.err.println("Start game message length error!");
-    User starter = users.get(clientID);
-    GameRoom room = gameRooms.get(starter.currentGameRoom);
+  void pStartGame(int clientID, int roomNumber) {
+    User starter = inRoom(clientID, roomNumber);
+    if (starter == null)
+      return;
+    GameRoom room = gameRooms.get(roomNumber);
     if (room == null) {
       System.err.println("Bug!");
     } else {
       room.incNumReady();
-      messageGameRoom(room, "T~" + users.get(clientID).username + " is ready!");
+      messageGameRoom(room, "T~" + starter.username + " is ready!");
       if (room.getNumPlayers() == room.getNumReady()) {
         messageGameRoom(room, "T~All users are ready. Game start!");
-        messageGameRoom(room, room.InitializeGame());
+        long seed = nextSeed(roomNumber);
+        System.out.println("Starting game in room "
+                + roomNumber + " with seed " + seed);
+        messageGameRoom(room, room.InitializeGame(seed));
+        roomChanged(roomNumber);
       }
     }
   }
   
-  //accepts message: S~card1~card2~card3
-  //sends a message of form G~flag~board~scores
-  void pSetRequest(int clientID, String [] messagePieces) throws SQLException{
-    if (messagePieces.length != 4) {
-      System.err.println("Set message length error!");
+  //accepts message: S~card1~card2~card3[~version]
+  //queues the claim for the room's arbitration window, or its tick if it
+  //has one; the first claim of a window schedules pResolveClaims for when
+  //it closes
+  void pSetRequest(int clientID, int roomNumber, int card1, int card2,
+                   int card3, int version, long received) {
+    if (inRoom(clientID, roomNumber) == null)
+      return;
+    GameRoom room = gameRooms.get(roomNumber);
+    //claims sent before the player saw the game end
+    if (room == null || !room.isPlaying())
+      return;
+    ClaimQueue pending = room.getPendingClaims();
+    pending.Add(clientID, card1, card2, card3, version, received);
+    long window = room.isTicking() ? room.getTickNanos() : ARBITRATION_NANOS;
+    if (window == 0)
+      pResolveClaims(roomNumber, room);
+    else if (pending.GetSize() == 1)
+      claimWindows.schedule(() -> runOn(shardFor(roomNumber),
+              () -> pResolveClaims(roomNumber, room)),
+              window, TimeUnit.NANOSECONDS);
+  }
+  
+  //runs the room's pending claims in the order they were read: the first
+  //valid one on the current board wins, the claims it made stale are
+  //answered with flag O and cost nothing
+  //sends a board snapshot (G~flag~board~scores~sequence) or delta (G~D~...)
+  //per claim, see GameRoom.CheckSetAndUpdate
+  //a ticking room instead resolves them all in one pass, deals once and
+  //answers with a single message, see GameRoom.ResolvePendingClaims
+  //room is the one the claims were queued in: if it closed before its
+  //window did, the room now under its number is left alone
+  void pResolveClaims(int roomNumber, GameRoom room) {
+    if (gameRooms.get(roomNumber) != room)
+      return;
+    ClaimQueue pending = room.getPendingClaims();
+    if (room.isTicking()) {
+      //claims queued as the game ended must not carry over to the next
+      if (!room.isPlaying())
+        pending.Clear();
+      if (pending.GetSize() == 0)
+        return;
+      messageGameRoom(room, room.ResolvePendingClaims());
+      if (room.isCompleted())
+        handleGameOver(roomNumber, room);
       return;
     }
-    User sender = users.get(clientID);
-    GameRoom room = gameRooms.get(sender.currentGameRoom);
-    String updateMessage = room.CheckSetAndUpdate(clientID,
-            messagePieces[1], messagePieces[2], messagePieces[3]);
-    messageGameRoom(room, updateMessage);
-    
-    //check if game's over
-    if (room.isCompleted())
-      handleGameOver(room);
+    pending.SortByArrival();
+    for (int i = 0; i != pending.GetSize() && room.isPlaying(); ++i) {
+      String updateMessage = room.CheckSetAndUpdate(pending.GetPid(i),
+              pending.GetCard(i, 0), pending.GetCard(i, 1),
+              pending.GetCard(i, 2), pending.GetVersion(i));
+      messageGameRoom(room, updateMessage);
+      
+      //check if game's over
+      if (room.isCompleted())
+        handleGameOver(roomNumber, room);
+    }
+    pending.Clear();
   }
   
   //Accepts "E"
   //sends out "T~[username]~left the game" to the room
   //removes users from the room and handles game over if necessary
-  void pExitGame(int clientID, String [] messagePieces) 
-          throws InterruptedException, SQLException {
-    if (messagePieces.length != 1) {
-      System.err.println("Leave game message length error!");
-      return;
-    }
-    User user = users.get(clientID);
-    if (user.currentGameRoom < 0) {
-      System.err.println("leave room bug!!!");
+  //the user is sent the lobby snapshot again
+  void pExitGame(int clientID, int roomNumber) throws InterruptedException {
+    User user = inRoom(clientID, roomNumber);
+    if (user == null)
       return;
-    }
-    GameRoom room = gameRooms.get(user.currentGameRoom);
+    GameRoom room = gameRooms.get(roomNumber);
     outgoingMessages.put(new Message(clientID, "E"));
-    if (room == null) {
+    if (room == null || !room.removePlayer(clientID)) {
       System.err.println("leave room bug!!!");
     } else {
-      room.removePlayer(clientID);
       if (room.isRoomEmpty()) {
-        gameRooms.remove(user.currentGameRoom);
-        outgoingMessages.put(new Message(-1, "U~R~"+user.currentGameRoom));
+        closeRoom(roomNumber, room);
       } else {
+        roomChanged(roomNumber);
         messageGameRoom(room, "T~" + user.username + "left the game");
         messageGameRoom(room, room.encodeNamesToString());
         if (room.isPlaying()) {
           //lower the score of the player who forfeited
-          dbConnection = DriverManager.getConnection(
-                  "jdbc:mysql://IP:Port", "userName", "passWord");     
-          Statement stmt = dbConnection.createStatement();
-          ResultSet rs = stmt.executeQuery("INSERT_LOWER_RATING_QUERY HERE");
-          stmt.close();
-          dbConnection.close();
+          forfeit(user);
           
           //handle game over if there's only 1 player left
           if (room.getNumPlayers() == 1) {
             room.setCompleted();
-            handleGameOver(room);
+            handleGameOver(roomNumber, room);
           }
         }
       }
     }
-    user.currentGameRoom = -1;
+    //queued before the user can join another room, so that join's
+    //unsubscribe is queued after it
+    runOn(lobbyLane, () -> pSubscribeLobby(clientID));
+    user.leaveRoom(roomNumber);
   }
   
   //accepts mesage C~message
   //sends out message C~[sender username]~message
-  void pLobbyChat(int clientID, String [] messagePieces) 
+  void pLobbyChat(int clientID, String message)
           throws InterruptedException {
-    if (messagePieces.length != 2) {
-      System.err.println("Lobby chat message length error!");
-      return;
-    }
     User sender = users.get(clientID);
     outgoingMessages.put(new Message(-1, "C~" + sender.username + '~' +
-            messagePieces[1]));
+            message));
   }  
   
   //accepts message T~message
   //sends out message T~[sender username]~message
-  void pGameChat(int clientID, String [] messagePieces) {
-    if (messagePieces.length != 2) {
-      System.err.println("Game chat message length error!");
-      return;
-    }
-    User sender = users.get(clientID);
-    GameRoom current = gameRooms.get(sender.currentGameRoom);
-    messageGameRoom(current, "T~" + sender.username + '~' + messagePieces[1]);
+  void pGameChat(int clientID, int roomNumber, String message) {
+    User sender = inRoom(clientID, roomNumber);
+    GameRoom current = gameRooms.get(roomNumber);
+    if (sender != null && current != null)
+      messageGameRoom(current, "T~" + sender.username + '~' + message);
+  }
+  
+  //accepts message B~version
+  //answers B~1 and switches the client to binary frames if it asked for
+  //version 1 (its reader already switched), B~0 and stays on text otherwise
+  void pNegotiate(int clientID, int version) throws InterruptedException {
+    if (version == 1)
+      outgoingMessages.put(new Message(clientID, BinaryFrames.NEGOTIATE,
+              WireProtocol.BINARY));
+    else
+      outgoingMessages.put(new Message(clientID, BinaryFrames.REFUSE));
   }
   
+  //one Message for the whole room so it is only encoded once
   void messageGameRoom(GameRoom room, String message) {
-    List<Integer> pids = room.getPlayerIds();
-    for (Integer pid : pids) {
-      try {
-        outgoingMessages.put(new Message(pid, message));
-      } catch (InterruptedException except) {
-        System.err.println("Could not send message to player with id: " + pid);
-      }
+    try {
+      outgoingMessages.put(new Message(room.getPlayerIdArray(), message));
+    } catch (InterruptedException except) {
+      System.err.println("Could not send message to room: " + room.getName());
     }
   }
   
+  //lowers the rating of a player who left a game in progress
+  void forfeit(User user) {
+    user.rating -= FORFEIT_PENALTY;
+    recordRating(user);
+  }
+  
+  //the cache sees the new rating right away, the database once the
+  //journal flushes
+  void recordRating(User user) {
+    userCache.cacheRating(user.username, user.rating);
+    ratingJournal.record(user.username, user.rating);
+  }
+  
   //handle cases for only 1 player left (everyone else left)
   //handle cases for actually completed
   // Game is over (players received F in their messages so they know)
-  // Send results to database
+  // Send results to database (through the write-behind rating journal)
   // Decide what to do with game room
   //handle what to do upon game over
-  void handleGameOver(GameRoom room) throws SQLException {
+  void handleGameOver(int roomNumber, GameRoom room) {
     if (room.isCompleted() == false)
       System.err.println("Bug!");
     messageGameRoom(room, "The game is over. Ratings updating...");
     List<Integer> winners = new ArrayList<>();
     List<Integer> losers = new ArrayList<>();
     room.getWinners(winners, losers);
+    //nobody loses on a tie between everyone
     int addedScore=((room.getNumPlayers()-winners.size())*10)/winners.size();
-    int subtractedScore=((room.getNumPlayers()-losers.size())*10)/losers.size();
-    dbConnection = DriverManager.getConnection(
-            "jdbc:mysql://IP:Port", "userName", "passWord");     
-    Statement stmt = dbConnection.createStatement();
+    int subtractedScore = losers.isEmpty() ? 0 :
+            ((room.getNumPlayers()-losers.size())*10)/losers.size();
     int updatedScore;
     for (int i = 0; i != winners.size(); ++i) {
       User current = users.get(winners.get(i));
+      //disconnected, pLeaveOnDisconnection is still queued behind us
+      if (current == null)
+        continue;
       updatedScore = current.rating + addedScore;
       messageGameRoom(room, "T~" + current.username + "'s rating: " +
               current.rating + " -> " + updatedScore);
       current.rating = updatedScore;
-      stmt.executeUpdate("UPDATE QUERY");
+      recordRating(current);
     }
     for (int i = 0; i != losers.size(); ++i) {
       User current = users.get(losers.get(i));
+      //disconnected, pLeaveOnDisconnection is still queued behind us
+      if (current == null)
+        continue;
       updatedScore = current.rating - subtractedScore;
       messageGameRoom(room, "T~" + current.username + "'s rating: " +
               current.rating + " -> " + updatedScore);
       current.rating = updatedScore;
-      stmt.executeUpdate("UPDATE QUERY");
+      recordRating(current);
     }
-    stmt.close();
-    dbConnection.close();
     room.resetRoom();
+    roomChanged(roomNumber);
     messageGameRoom(room, "G~R");
   }
   
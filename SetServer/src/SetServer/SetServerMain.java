@@ -7,13 +7,33 @@
 package SetServer;
 
 /**
- *
+ * usage: SetServerMain [thread_per_client|selector|virtual_threads]
+ *                      [disconnect|drop|backpressure]
+ *                      [memory|jdbc url [db user] [db password]]
  * @author Harrison
  */
 public class SetServerMain {
+  static final int DATABASE_CONNECTIONS = 8;
   
-  public static void main(){
-    SetServer setserver = new SetServer();
+  public static void main(String [] args){
+    ConnectionMode mode = ConnectionMode.THREAD_PER_CLIENT;
+    OverflowPolicy overflowPolicy = OverflowPolicy.DISCONNECT;
+    if (args.length > 0)
+      mode = ConnectionMode.parse(args[0]);
+    if (args.length > 1)
+      overflowPolicy = OverflowPolicy.parse(args[1]);
+    SetServer setserver = new SetServer(mode, overflowPolicy,
+            openUserStore(args), DATABASE_CONNECTIONS);
     setserver.runServer();
   }
+  
+  static UserStore openUserStore(String [] args) {
+    String url = args.length > 2 ? args[2] : "jdbc:mysql://IP:Port";
+    if (url.equalsIgnoreCase("memory"))
+      return new InMemoryUserStore();
+    String user = args.length > 3 ? args[3] : "userName";
+    String password = args.length > 4 ? args[4] : "passWord";
+    return new JdbcUserStore(
+            new ConnectionPool(url, user, password, DATABASE_CONNECTIONS));
+  }
 }
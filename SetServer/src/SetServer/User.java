@@ -6,17 +6,47 @@
 
 package SetServer;
 
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
 /**
- *
+ * currentGameRoom and rating are written by the room shards and read by the
+ * lobby lane, hence volatile
+ * Creating a room (lobby lane) and joining one (its shard) race for the
+ * same user, so entering a room goes through enterRoom, which only
+ * succeeds from -1. A disconnection takes the user out of rooms for good
+ * with one swap, so a join that already had the User can't put it back
+ * into a room nobody will ever leave
  * @author Harrison
  */
 public class User {
+  //a room being created on the lobby lane, not routable yet
+  public static final int ENTERING = -2;
+  //disconnected, can't enter a room again
+  public static final int GONE = -3;
+  private static final AtomicIntegerFieldUpdater<User> ROOM =
+          AtomicIntegerFieldUpdater.newUpdater(User.class, "currentGameRoom");
+  
   public String username;
-  public int currentGameRoom;
-  public int rating;
+  public volatile int currentGameRoom;
+  public volatile int rating;
   public User(String username, int currentGameRoom, int rating) {
     this.username = username;
     this.currentGameRoom = currentGameRoom;
     this.rating = rating;
   }
+  
+  //false if the user is already in (or entering) a room
+  public boolean enterRoom(int roomNumber) {
+    return ROOM.compareAndSet(this, -1, roomNumber);
+  }
+  
+  //only leaves roomNumber, a disconnection may have made the user GONE
+  public void leaveRoom(int roomNumber) {
+    ROOM.compareAndSet(this, roomNumber, -1);
+  }
+  
+  //the room the user was in, if any, the user can't enter one after this
+  public int leaveForGood() {
+    return ROOM.getAndSet(this, GONE);
+  }
 }
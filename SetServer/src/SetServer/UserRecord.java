@@ -0,0 +1,22 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package SetServer;
+
+/**
+ * A registered user as stored in the database
+ */
+public class UserRecord {
+  public final String username;
+  public final String password;
+  public final int rating;
+  
+  public UserRecord(String username, String password, int rating) {
+    this.username = username;
+    this.password = password;
+    this.rating = rating;
+  }
+}
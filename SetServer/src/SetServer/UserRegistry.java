@@ -0,0 +1,50 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package SetServer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Everyone currently logged in, indexed both ways
+ * clientID -> User and username -> clientID, so claiming a name checks
+ * whether it is online with a single lookup. A username can only be claimed by one client at a time and
+ * a client can only hold one username.
+ * Safe to read from any lane.
+ */
+public class UserRegistry {
+  private final ConcurrentMap<Integer, User> byClient;
+  private final ConcurrentMap<String, Integer> byName;
+  
+  public UserRegistry() {
+    byClient = new ConcurrentHashMap<>();
+    byName = new ConcurrentHashMap<>();
+  }
+  
+  //false if the username is already online or the client is logged in
+  public boolean claim(int clientID, User user) {
+    if (byName.putIfAbsent(user.username, clientID) != null)
+      return false;
+    if (byClient.putIfAbsent(clientID, user) != null) {
+      byName.remove(user.username, clientID);
+      return false;
+    }
+    return true;
+  }
+  
+  //logs the client out, returns its User or null if it never logged in
+  public User release(int clientID) {
+    User released = byClient.remove(clientID);
+    if (released != null)
+      byName.remove(released.username, clientID);
+    return released;
+  }
+  
+  public User get(int clientID) {
+    return byClient.get(clientID);
+  }
+}
@@ -0,0 +1,28 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package SetServer;
+
+import java.sql.SQLException;
+import java.util.Map;
+
+/**
+ * Persistence for registered users, blocking
+ * Never call it from a DispatchLane directly, go through AsyncUserStore.
+ */
+public interface UserStore {
+  int DEFAULT_RATING = 100;
+  
+  //null if no such user
+  UserRecord findUser(String username) throws SQLException;
+  
+  //false if the username is already taken
+  boolean createUser(String username, String password, int rating)
+          throws SQLException;
+  
+  //username -> new rating, written as one batch
+  void updateRatings(Map<String, Integer> ratings) throws SQLException;
+}
@@ -0,0 +1,27 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package SetServer;
+
+import SetProtocol.BinaryFrames;
+
+/**
+ * How messages are framed on a connection
+ * TEXT   - '\n' terminated '~' delimited lines, what every client starts with
+ * BINARY - length prefixed frames, see BinaryFrames; a client switches by
+ *          sending the line "B~1", the server answers "B~1" and both sides
+ *          use binary frames from the next byte on
+ */
+public enum WireProtocol {
+  TEXT,
+  BINARY;
+  
+  public byte[] encode(String message) {
+    if (this == BINARY)
+      return BinaryFrames.encode(message);
+    return (message + '\n').getBytes(ClientEndpoint.WIRE_CHARSET);
+  }
+}
@@ -0,0 +1,424 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package SetServer.src.benchmarks;
+
+import SetServer.src.gamebackend.*;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH benchmarks for the game engine's hot paths
+ * Run them all with java -jar benchmarks.jar -prof gc, or through main,
+ * which always adds the gc profiler and reports time and bytes allocated
+ * per operation for each one
+ * usage: GameBenchmarks [-save file] [-compare file] [name filter]
+ * -save writes the results, -compare exits with 1 if any benchmark
+ * allocates more than in the saved file, and warns about any that run over
+ * MAX_SLOWDOWN slower. Timings move too much between runs to fail on
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 5, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(1)
+@State(Scope.Thread)
+public class GameBenchmarks {
+
+  static final double MAX_SLOWDOWN = 1.25;
+  //boards, sets and claims are cycled through so the branches don't all
+  //go the same way
+  static final int VARIANTS = 64;
+  static final int CONTENDERS = 4;
+  static final int GAMES = 64;
+  static final String[] CARD_IDS = new String[Cards.NUM_CARDS];
+
+  static {
+    for (int i = 0; i != CARD_IDS.length; ++i)
+      CARD_IDS[i] = Integer.toString(i);
+  }
+
+  int next;
+  Board reused;
+  Set[] sets;
+  int[] claim;
+  GameRoom claimRoom;
+  GameRoom updateRoom;
+  GameRoom contendedRoom;
+  GameRoom tickRoom;
+  GameRoom encodeRoom;
+  Board deltaBoard;
+  Scoring scoring;
+
+  @Setup
+  public void setUp() {
+    reused = new Board(new SeededRandom(0));
+
+    GameRoom decoder = new GameRoom("Benchmark", 1);
+    sets = new Set[VARIANTS];
+    SeededRandom random = new SeededRandom(0);
+    for (int i = 0; i != VARIANTS; ++i) {
+      //every other set is valid
+      int a = random.nextInt(Cards.NUM_CARDS);
+      int b = (a + 1 + random.nextInt(Cards.NUM_CARDS - 1)) % Cards.NUM_CARDS;
+      int c = i % 2 == 0 ? Cards.Third(a, b) : random.nextInt(Cards.NUM_CARDS);
+      sets[i] = decoder.decodeSetFromString(CARD_IDS[a], CARD_IDS[b],
+              CARD_IDS[c]);
+    }
+
+    claim = new int[3];
+    claimRoom = newRoom(4);
+    updateRoom = newRoom(4);
+    contendedRoom = newRoom(CONTENDERS);
+    tickRoom = newRoom(CONTENDERS);
+
+    //the delta of an accepted claim, which changes three slots
+    encodeRoom = newRoom(4);
+    deltaBoard = encodeRoom.getBoard();
+    int[] deltaSet = new int[3];
+    deltaBoard.FindSet(deltaSet);
+    deltaBoard.Claim(deltaSet[0], deltaSet[1], deltaSet[2]);
+    deltaBoard.DealUntilSetOrTwelve();
+
+    List<Player> players = new ArrayList<>();
+    for (int i = 0; i != 4; ++i)
+      players.add(new Player(i, "player" + i, 0));
+    scoring = new Scoring(players);
+    for (int i = 0; i != 4; ++i)
+      scoring.addToScore(i, 3 * i);
+  }
+
+  //VARIANTS boards with size cards on the table
+  @State(Scope.Thread)
+  public static class Tables {
+    @Param({"12", "15", "18", "21"})
+    int size;
+    Board[] boards;
+    int[] cards;
+    int next;
+
+    @Setup
+    public void setUp() {
+      boards = new Board[VARIANTS];
+      for (int i = 0; i != VARIANTS; ++i) {
+        boards[i] = new Board(new SeededRandom(i));
+        boards[i].Deal(size - boards[i].GetNumActive());
+      }
+      cards = new int[3];
+    }
+
+    Board nextBoard() {
+      return boards[next++ & (VARIANTS - 1)];
+    }
+  }
+
+  //GAMES games and the sets each takes, in order, worked out once; the
+  //games are restarted before every iteration and claimRound cycles
+  //through them, so finding a set is never measured. A game that has used
+  //up its sets is restarted in place, one restart per ~25 rounds of it
+  @State(Scope.Thread)
+  public static class Games {
+    GameRoom[] rooms;
+    //three cards per set
+    int[][] sets;
+    //cards of sets[i] claimed since game i was restarted
+    int[] claimed;
+    int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+      rooms = new GameRoom[GAMES];
+      sets = new int[GAMES][];
+      claimed = new int[GAMES];
+      int[] cards = new int[3];
+      int[] script = new int[Cards.NUM_CARDS];
+      for (int i = 0; i != GAMES; ++i) {
+        rooms[i] = new GameRoom("Benchmark", 2);
+        rooms[i].addPlayer(1, "p1");
+        rooms[i].addPlayer(2, "p2");
+        rooms[i].InitializeGame(i);
+        int n = 0;
+        while (!rooms[i].isCompleted() && rooms[i].getBoard().FindSet(cards)) {
+          System.arraycopy(cards, 0, script, n, 3);
+          n += 3;
+          rooms[i].Claim(1, cards[0], cards[1], cards[2]);
+        }
+        sets[i] = Arrays.copyOf(script, n);
+      }
+    }
+
+    @Setup(Level.Iteration)
+    public void restartAll() {
+      for (int i = 0; i != GAMES; ++i)
+        restart(i);
+    }
+
+    //the same seed deals the same cards, so the same sets come up again
+    void restart(int i) {
+      rooms[i].InitializeGame(i);
+      claimed[i] = 0;
+    }
+
+    int nextGame() {
+      int i = next++ & (GAMES - 1);
+      if (claimed[i] == sets[i].length)
+        restart(i);
+      return i;
+    }
+  }
+
+  @Benchmark
+  public long boardInit() {
+    return new Board(new SeededRandom(next++)).GetNumSets();
+  }
+
+  @Benchmark
+  public long boardReset() {
+    reused.Reset();
+    return reused.GetNumSets();
+  }
+
+  @Benchmark
+  public long boardCountSets(Tables tables) {
+    return tables.nextBoard().CountSets();
+  }
+
+  @Benchmark
+  public long boardFindSet(Tables tables) {
+    return tables.nextBoard().FindSet(tables.cards) ? tables.cards[2] : -1;
+  }
+
+  @Benchmark
+  public boolean setCheckIfSetValid() {
+    return sets[next++ & (VARIANTS - 1)].CheckIfSetValid();
+  }
+
+  //a game is restarted when it ends, which is where the few bytes per op
+  //come from (see claimRound)
+  @Benchmark
+  public long gameRoomClaim() {
+    return claim(claimRoom) ? claimRoom.Claim(1, claim[0], claim[1],
+            claim[2]).ordinal() : -1;
+  }
+
+  //an accepted claim, the same claim again (stale) and an invalid one
+  @Benchmark
+  @OperationsPerInvocation(3)
+  public long claimRound(Games games) {
+    int i = games.nextGame();
+    GameRoom room = games.rooms[i];
+    int[] sets = games.sets[i];
+    int k = games.claimed[i];
+    games.claimed[i] = k + 3;
+    return room.Claim(1, sets[k], sets[k + 1], sets[k + 2]).ordinal()
+            + room.Claim(2, sets[k], sets[k + 1], sets[k + 2]).ordinal()
+            + room.Claim(2, sets[k], sets[k + 1], sets[k + 1]).ordinal();
+  }
+
+  @Benchmark
+  public long gameRoomCheckSetAndUpdate() {
+    return claim(updateRoom) ? updateRoom.CheckSetAndUpdate(1,
+            CARD_IDS[claim[0]], CARD_IDS[claim[1]], CARD_IDS[claim[2]])
+            .length() : -1;
+  }
+
+  //CONTENDERS players claim the same set at once: answered one claim at
+  //a time, then as one tick
+  @Benchmark
+  @OperationsPerInvocation(CONTENDERS)
+  public long contendedPerClaim() {
+    if (!claim(contendedRoom))
+      return -1;
+    long sum = 0;
+    for (int pid = 1; pid <= CONTENDERS; ++pid)
+      sum += contendedRoom.CheckSetAndUpdate(pid, claim[0], claim[1],
+              claim[2], -1).length();
+    return sum;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(CONTENDERS)
+  public long contendedTick() {
+    if (!claim(tickRoom))
+      return -1;
+    ClaimQueue pending = tickRoom.getPendingClaims();
+    for (int pid = 1; pid <= CONTENDERS; ++pid)
+      pending.Add(pid, claim[0], claim[1], claim[2], -1, pid);
+    return tickRoom.ResolvePendingClaims().length();
+  }
+
+  @Benchmark
+  public int encodeBoardToString() {
+    return encodeRoom.getGameUpdate().length();
+  }
+
+  @Benchmark
+  public int encodeNamesToString() {
+    return encodeRoom.encodeNamesToString().length();
+  }
+
+  @Benchmark
+  public int encodeDeltaToString() {
+    return encodeRoom.encodeDeltaToString(deltaBoard, 1, "Y").length();
+  }
+
+  @Benchmark
+  public int scoresToString() {
+    return scoring.ScoresToString().length();
+  }
+
+  //finds a set for the next claim in claim, restarting the game if it is
+  //over; false when it had to
+  boolean claim(GameRoom room) {
+    if (room.isCompleted() || !room.getBoard().FindSet(claim)) {
+      room.InitializeGame(next++);
+      return false;
+    }
+    return true;
+  }
+
+  static GameRoom newRoom(int numPlayers) {
+    GameRoom room = new GameRoom("Benchmark", numPlayers);
+    for (int i = 1; i <= numPlayers; ++i)
+      room.addPlayer(i, "player" + i);
+    room.InitializeGame(0);
+    return room;
+  }
+
+  public static void main(String [] args)
+          throws IOException, RunnerException {
+    String savePath = null;
+    String comparePath = null;
+    String filter = "";
+    for (int i = 0; i < args.length; ++i) {
+      if (args[i].equals("-save") && i + 1 < args.length)
+        savePath = args[++i];
+      else if (args[i].equals("-compare") && i + 1 < args.length)
+        comparePath = args[++i];
+      else
+        filter = args[i];
+    }
+
+    Options options = new OptionsBuilder()
+            .include(GameBenchmarks.class.getPackage().getName() + ".*"
+                    + filter)
+            .addProfiler(GCProfiler.class)
+            .build();
+    List<Measured> results = new ArrayList<>();
+    for (RunResult run : new Runner(options).run()) {
+      Measured result = new Measured(run);
+      System.out.println(result);
+      results.add(result);
+    }
+
+    if (savePath != null)
+      save(savePath, results);
+    if (comparePath != null && !compare(comparePath, results))
+      System.exit(1);
+  }
+
+  //one benchmark's score and allocation rate
+  static class Measured {
+    final String name;
+    final double nsPerOp;
+    final double nsError;
+    final double bytesPerOp;
+
+    Measured(RunResult run) {
+      StringBuilder label = new StringBuilder(run.getParams().getBenchmark());
+      label.delete(0, label.lastIndexOf(".", label.lastIndexOf(".") - 1) + 1);
+      Collection<String> keys = run.getParams().getParamsKeys();
+      for (String key : keys)
+        label.append(' ').append(key).append('=')
+                .append(run.getParams().getParam(key));
+      name = label.toString();
+      Result primary = run.getPrimaryResult();
+      nsPerOp = primary.getScore();
+      nsError = Double.isNaN(primary.getScoreError()) ? 0
+              : primary.getScoreError();
+      double bytes = 0;
+      for (Map.Entry<String, Result> secondary
+              : run.getSecondaryResults().entrySet()) {
+        if (secondary.getKey().endsWith("gc.alloc.rate.norm"))
+          bytes = secondary.getValue().getScore();
+      }
+      bytesPerOp = bytes;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%-45s %12.1f +- %8.1f ns/op %12.1f B/op",
+              name, nsPerOp, nsError, bytesPerOp);
+    }
+  }
+
+  static void save(String path, List<Measured> results) throws IOException {
+    List<String> lines = new ArrayList<>();
+    for (Measured result : results)
+      lines.add(result.name + "\t" + result.nsPerOp + "\t" + result.bytesPerOp);
+    Files.write(Paths.get(path), lines, StandardCharsets.UTF_8);
+  }
+
+  //returns false if anything regressed against the saved results
+  static boolean compare(String path, List<Measured> results)
+          throws IOException {
+    Map<String, double[]> baseline = new HashMap<>();
+    for (String line : Files.readAllLines(Paths.get(path),
+            StandardCharsets.UTF_8)) {
+      String [] fields = line.split("\t");
+      if (fields.length == 3)
+        baseline.put(fields[0], new double[] {Double.parseDouble(fields[1]),
+                                              Double.parseDouble(fields[2])});
+    }
+    boolean passed = true;
+    for (Measured result : results) {
+      double[] base = baseline.get(result.name);
+      if (base == null)
+        continue;
+      //what the JIT manages to scalar replace can move a little between
+      //runs
+      if (result.bytesPerOp > base[1] + Math.max(16, base[1] / 10)) {
+        System.err.printf("%s allocates %.1f B/op, was %.1f%n",
+                result.name, result.bytesPerOp, base[1]);
+        passed = false;
+      }
+      if (result.nsPerOp - result.nsError > base[0] * MAX_SLOWDOWN) {
+        System.err.printf("warning: %s takes %.1f ns/op, was %.1f%n",
+                result.name, result.nsPerOp, base[0]);
+      }
+    }
+    return passed;
+  }
+}
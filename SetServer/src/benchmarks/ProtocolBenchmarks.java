@@ -0,0 +1,146 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package SetServer.src.benchmarks;
+
+import SetServer.CommandHandler;
+import SetServer.CommandParser;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks for decoding client commands, run by GameBenchmarks' main
+ * along with the game engine ones
+ * Compares CommandParser with the String.split decoding it replaced on the
+ * same mix of commands, weighted towards set claims like a busy server
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 5, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(1)
+@State(Scope.Thread)
+public class ProtocolBenchmarks {
+  
+  static final String[] COMMANDS = {
+    "S~0~1~2~7", "S~17~45~80~8", "S~3~33~63~9", "S~12~40~71~9",
+    "S~5~6~7~10", "S~20~50~79~11", "J~3", "G", "T~nice one", "E", "C~anyone up for a game?",
+    "N~Room~4", "S~9~10~11~12", "S~60~61~62~12", "L~player~secret", "D"
+  };
+  
+  final CommandParser parser = new CommandParser();
+  final CountingHandler handler = new CountingHandler();
+  int next;
+  
+  @Benchmark
+  public long split() {
+    return splitDecode(COMMANDS[next++ % COMMANDS.length]);
+  }
+  
+  @Benchmark
+  public long commandParser() {
+    parser.parse(next, COMMANDS[next++ % COMMANDS.length], handler);
+    return handler.sum;
+  }
+  
+  //the first six commands are claims
+  @Benchmark
+  public long commandParserClaim() {
+    parser.parse(next, COMMANDS[next++ % 6], handler);
+    return handler.sum;
+  }
+  
+  //what runServer used to do with each message before handing it on
+  static long splitDecode(String message) {
+    String [] pieces = message.split("~");
+    switch (pieces[0]) {
+      case "S":
+        return Integer.parseInt(pieces[1]) + Integer.parseInt(pieces[2])
+                + Integer.parseInt(pieces[3]) + Integer.parseInt(pieces[4]);
+      case "J":
+        return Integer.parseInt(pieces[1]);
+      case "N":
+        return pieces[1].length() + Integer.parseInt(pieces[2]);
+      default:
+        return pieces.length;
+    }
+  }
+  
+  //folds in what it is given so the parsing can't be dropped
+  static class CountingHandler implements CommandHandler {
+    long sum;
+  
+    @Override
+    public void login(int clientID, String username, String password) {
+      sum += username.length() + password.length();
+    }
+  
+    @Override
+    public void register(int clientID, String username, String password) {
+      sum += username.length() + password.length();
+    }
+  
+    @Override
+    public void disconnect(int clientID) {
+      sum += 1;
+    }
+  
+    @Override
+    public void createGame(int clientID, String roomName, int maxNumPlayers,
+                           int tickMillis) {
+      sum += roomName.length() + maxNumPlayers + tickMillis;
+    }
+  
+    @Override
+    public void joinGame(int clientID, int roomNumber) {
+      sum += roomNumber;
+    }
+  
+    @Override
+    public void startGame(int clientID) {
+      sum += 1;
+    }
+  
+    @Override
+    public void claimSet(int clientID, int card1, int card2, int card3,
+                         int version) {
+      sum += card1 + card2 + card3 + version;
+    }
+  
+    @Override
+    public void exitGame(int clientID) {
+      sum += 1;
+    }
+  
+    @Override
+    public void lobbyChat(int clientID, String message) {
+      sum += message.length();
+    }
+  
+    @Override
+    public void gameChat(int clientID, String message) {
+      sum += message.length();
+    }
+  
+    @Override
+    public void negotiate(int clientID, int version) {
+      sum += version;
+    }
+  
+    @Override
+    public void malformed(int clientID, char command, String error) {
+      sum -= 1;
+    }
+  }
+}
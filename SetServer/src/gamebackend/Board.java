@@ -6,36 +6,117 @@
 
 package SetServer.src.gamebackend;
 import java.util.*;
+import java.util.random.RandomGenerator;
 
 /**
  *
  * @author David
  */
 public class Board{
-    List<Card> deck;    // All unused cards
-    List<Card> active;  // All cards currently on the table
-    List<Card> found;   // All cards who have already been found in a set
+    // Cards are ints 0..80, see Cards
+    // The shuffled deck, deck[next..80] are the unused cards
+    final int[] deck = new int[Cards.NUM_CARDS];
+    int next;
+    List<Integer> found;   // All cards who have already been found in a set
     
-    Set ValidSet; // A valid set.  Will be null until checkforsets runs
+    // The cards on the table by slot, -1 for a hole left by a removed set
+    // Cards keep their slot until they are removed, so positions are stable
+    // for clients. Deal fills holes first, Compact moves trailing cards into
+    // the holes that are left
+    final int[] table = new int[Cards.NUM_CARDS];
+    int numSlots;   // slots in use, holes included
+    int numActive;  // cards on the table
+    // Slot of each card, -1 if it is not on the table
+    final int[] slotOf = new int[Cards.NUM_CARDS];
+    
+    // Slots changed since the last Claim or Reset, each listed once
+    final int[] changedSlots = new int[Cards.NUM_CARDS];
+    final boolean[] slotChanged = new boolean[Cards.NUM_CARDS];
+    int numChanged;
+    
+    // Live index of the sets among the active cards
+    // setsThrough[c] is how many of them contain card c, numSets is the total
+    // Updated in O(n) per card by AddToIndex and RemoveFromIndex
+    int[] setsThrough = new int[Cards.NUM_CARDS];
+    int numSets;
+    
+    final RandomGenerator random;
     
     public Board(){
-        active = new ArrayList<>();
-        found = new ArrayList<>();
-        deck = new ArrayList<>();
-        FillAndShuffle(deck);
+        this(new SplittableRandom());
+    }
+    
+    // Every Reset shuffles with random, so a seeded generator gives a
+    // replayable game
+    public Board(RandomGenerator random){
+        this.random = random;
+        found = new ArrayList<>(Cards.NUM_CARDS);
+        Reset();
+    }
+    
+    // Starts a new game on this board: reshuffles and deals 12 cards
+    // Reuses all of the board's storage, allocates nothing
+    public void Reset(){
+        found.clear();
+        numSlots = 0;
+        numActive = 0;
+        Arrays.fill(slotOf, -1);
+        ClearChanges();
+        Arrays.fill(setsThrough, 0);
+        numSets = 0;
+        Shuffle();
         Deal(12);
     }
     
+    public int GetDeckSize(){
+        return deck.length - next;
+    }
+    
+    public int GetNumActive(){
+        return numActive;
+    }
+    
+    // Card in the given slot, -1 for a hole
+    public int GetCard(int slot){
+        return table[slot];
+    }
+    
+    // Slot of card c, -1 if it is not on the table
+    public int GetSlot(int c){
+        return slotOf[c];
+    }
+    
+    public int GetNumSlots(){
+        return numSlots;
+    }
+    
+    // The delta since the last Claim: slots 0..GetNumChanged()-1 of the
+    // change list. A changed slot at or past GetNumSlots() was dropped from
+    // the end of the table, any other now holds GetCard(slot)
+    public int GetNumChanged(){
+        return numChanged;
+    }
+    
+    public int GetChangedSlot(int i){
+        return changedSlots[i];
+    }
+    
     // Deals cards 3 at a time until there is a set
     // Returns false if no sets are possible after emptying deck (game over)
+    // Leaves no holes in the table either way
     public boolean DealUntilSetOrTwelve(){
-        while(!CheckForSets()){
-            if(!Deal(3))
+        while(!HasSet()){
+            if(!Deal(3)){
+                Compact();
                 return false;
+            }
         }
-        if(active.size() < 12){
-            Deal(12-active.size());
+        // A tick can take several sets at once, so the deck may not have
+        // enough left to refill to twelve; deal what there is
+        if(numActive < 12){
+            Deal(Math.min(12-numActive, GetDeckSize()));
         }
+        Compact();
         return true;
     }
     
@@ -43,54 +124,121 @@ public class Board{
     // Return of -1 indicates a bug, and should never happen under normal cond.
     // Return 1 if set is valid, and board must be updated
     // Return 0 if set is invalid, and board need not be changed.
+    // The cards' slots are left as holes until DealUntilSetOrTwelve
     public int TestAndRemoveSet(Set s){
-        if(s.CheckIfSetValid()){
-            for(int i=0; i<3; i++){
-                Card c = s.GetCardNumber(i);
-                int addr = FindCardAddr(c);
-                if(addr == -1)
-                    return -1;
-                found.add(active.remove(addr));
-            }
-            return 1;
+        switch(Claim(s.GetCardNumber(0), s.GetCardNumber(1),
+                s.GetCardNumber(2))){
+            case ACCEPTED:
+                return 1;
+            case INVALID:
+                return 0;
+            default:
+                return -1;
         }
-        return 0;
+    }
+    
+    // Validates a claim once and removes its cards if it is accepted
+    // Starts a new delta, see GetNumChanged. Allocates nothing
+    public ClaimResult Claim(int a, int b, int c){
+        ClearChanges();
+        return AddClaim(a, b, c);
+    }
+    
+    // Claim without starting a new delta, so the claims of a batch and the
+    // one deal after them all land in the same delta
+    public ClaimResult AddClaim(int a, int b, int c){
+        if(!Cards.IsSet(a, b, c))
+            return ClaimResult.INVALID;
+        // Check all three first so a stale claim leaves the board untouched
+        if(!IsActive(a) || !IsActive(b) || !IsActive(c))
+            return ClaimResult.STALE;
+        Remove(a);
+        Remove(b);
+        Remove(c);
+        return ClaimResult.ACCEPTED;
     }
     
     //
     public String BoardToString(){
-        String outp = "";
-        for(int i=0; i<active.size(); i++){
-            Card c = active.get(i);
-            outp += c.GetSingleDigit();
-            outp += " ";
+        StringBuilder outp = new StringBuilder(3 * numActive);
+        AppendTo(outp);
+        return outp.toString();
+    }
+    
+    // Writes the active cards in slot order, space separated,
+    // without allocating
+    public void AppendTo(StringBuilder out){
+        boolean first = true;
+        for(int i=0; i<numSlots; i++){
+            int c = table[i];
+            if(c < 0)
+                continue;
+            if(!first)
+                out.append(' ');
+            out.append(c);
+            first = false;
         }
-        return outp.trim();
     }
     
     public void PrintActiveCards(){
-      for(Card c : active){
-        System.out.println(c.toString());
+      for(int i=0; i<numSlots; i++){
+        if(table[i] >= 0)
+          System.out.println(Cards.ToString(table[i]));
       }
     }
     
-    private int FindCardAddr(Card c){
-        for(int i=0; i<active.size(); i++){
-            if((active.get(i)).equals(c))
-                return i;
-        }
-        return -1;
-    }
-    
-    // Returns true if there is a set in active cards else false
-    private boolean CheckForSets(){
-        for(int i=0; i<active.size(); i++){
-            for(int j=(i+1); j<active.size(); j++){
-                for(int k=(j+1); k<active.size(); k++){
-                    Set s = new Set(active.get(i), active.get(j), active.get(k));
-                    if(s.CheckIfSetValid()){
-                      ValidSet = s;
-                      return true;
+    public boolean IsActive(int c){
+        return slotOf[c] >= 0;
+    }
+    
+    // True if a, b and c form a set and are all on the table, O(1)
+    public boolean IsSetOnTable(int a, int b, int c){
+        return Cards.IsSet(a, b, c) && IsActive(a) && IsActive(b)
+                && IsActive(c);
+    }
+    
+    // O(1) from the index
+    public boolean HasSet(){
+        return numSets > 0;
+    }
+    
+    public int GetNumSets(){
+        return numSets;
+    }
+    
+    // Number of sets on the table containing card c, 0 if c is not active
+    public int GetSetsThrough(int c){
+        return setsThrough[c];
+    }
+    
+    // Returns a set among the active cards, or null if there is none
+    // The index says which card is in a set, so only that card's pairs
+    // need checking: O(n)
+    public Set FindSet(){
+        int[] cards = new int[3];
+        if(!FindSet(cards))
+            return null;
+        return new Set(cards[0], cards[1], cards[2]);
+    }
+    
+    // Same as FindSet, but writes the set into cards instead of allocating
+    // Returns false if there is none
+    public boolean FindSet(int[] cards){
+        if(numSets == 0)
+            return false;
+        for(int i=0; i<numSlots; i++){
+            int a = table[i];
+            if(a >= 0 && setsThrough[a] > 0){
+                for(int j=0; j<numSlots; j++){
+                    int b = table[j];
+                    if(b < 0 || b == a)
+                        continue;
+                    int c = Cards.Third(a, b);
+                    if(IsActive(c)){
+                        cards[0] = a;
+                        cards[1] = b;
+                        cards[2] = c;
+                        return true;
                     }
                 }
             }
@@ -98,23 +246,178 @@ public class Board{
         return false;
     }
     
-    // Attempts to deal "num" cards from deck to active.
+    // Returns a set containing active card a, or null if there is none
+    // Used for hints, O(n)
+    public Set FindSetThrough(int a){
+        if(!IsActive(a) || setsThrough[a] == 0)
+            return null;
+        for(int i=0; i<numSlots; i++){
+            int b = table[i];
+            if(b < 0 || b == a)
+                continue;
+            int c = Cards.Third(a, b);
+            if(IsActive(c))
+                return new Set(a, b, c);
+        }
+        return null;
+    }
+    
+    // Adds every set among the active cards to sets, returns how many
+    public int FindAllSets(List<Set> sets){
+        return VisitSets(sets);
+    }
+    
+    // Number of sets among the active cards recounted from scratch, O(n^2)
+    // Use GetNumSets unless checking the index
+    public int CountSets(){
+        return VisitSets(null);
+    }
+    
+    // Each set is seen from all three of its pairs, only the pair holding
+    // its two lowest cards reports it
+    private int VisitSets(List<Set> sets){
+        int count = 0;
+        for(int i=0; i<numSlots; i++){
+            int a = table[i];
+            if(a < 0)
+                continue;
+            for(int j=(i+1); j<numSlots; j++){
+                int b = table[j];
+                if(b < 0)
+                    continue;
+                int c = Cards.Third(a, b);
+                if(c > a && c > b && IsActive(c)){
+                    count++;
+                    if(sets != null)
+                        sets.add(new Set(a, b, c));
+                }
+            }
+        }
+        return count;
+    }
+    
+    // Counts every set card c makes with two cards already on the table
+    // Each such set is seen from both of c's pairs in it, only the pair
+    // whose other card is the lower of the two counts it
+    private void AddToIndex(int c){
+        for(int i=0; i<numSlots; i++){
+            int b = table[i];
+            if(b < 0 || b == c)
+                continue;
+            int t = Cards.Third(c, b);
+            if(t > b && IsActive(t)){
+                numSets++;
+                setsThrough[c]++;
+                setsThrough[b]++;
+                setsThrough[t]++;
+            }
+        }
+    }
+    
+    // Reverse of AddToIndex, must run while c is still on the table
+    private void RemoveFromIndex(int c){
+        for(int i=0; i<numSlots; i++){
+            int b = table[i];
+            if(b < 0 || b == c)
+                continue;
+            int t = Cards.Third(c, b);
+            if(t > b && IsActive(t)){
+                numSets--;
+                setsThrough[c]--;
+                setsThrough[b]--;
+                setsThrough[t]--;
+            }
+        }
+    }
+    
+    // O(n) for the index, O(1) to take c off the table
+    private void Remove(int c){
+        RemoveFromIndex(c);
+        MarkChanged(slotOf[c]);
+        table[slotOf[c]] = -1;
+        slotOf[c] = -1;
+        numActive--;
+        found.add(c);
+    }
+    
+    // Puts c in the lowest hole, or in a new slot at the end
+    private void Place(int c){
+        int slot = numSlots;
+        if(numActive < numSlots){
+            for(int i=0; i<numSlots; i++){
+                if(table[i] < 0){
+                    slot = i;
+                    break;
+                }
+            }
+        }
+        else
+            numSlots++;
+        table[slot] = c;
+        slotOf[c] = slot;
+        numActive++;
+        MarkChanged(slot);
+    }
+    
+    // Fills the holes with the cards from the end of the table
+    // Only cards behind a hole move, the rest keep their slots
+    private void Compact(){
+        int hole = 0;
+        while(numActive < numSlots){
+            if(table[numSlots-1] < 0){
+                numSlots--;
+                continue;
+            }
+            while(table[hole] >= 0)
+                hole++;
+            int c = table[--numSlots];
+            table[hole] = c;
+            slotOf[c] = hole;
+            MarkChanged(hole);
+            MarkChanged(numSlots);
+        }
+    }
+    
+    private void MarkChanged(int slot){
+        if(!slotChanged[slot]){
+            slotChanged[slot] = true;
+            changedSlots[numChanged++] = slot;
+        }
+    }
+    
+    // Starts an empty delta, for a claim turned down without a look at
+    // the cards
+    public void ClearChanges(){
+        for(int i=0; i<numChanged; i++)
+            slotChanged[changedSlots[i]] = false;
+        numChanged = 0;
+    }
+    
+    // Attempts to deal "num" cards from deck to the table.
     // Returns true if successful. Returns false if deck is empty.
-    private boolean Deal(int num){
-        if(deck.size() >= num){
+    public boolean Deal(int num){
+        if(GetDeckSize() >= num){
             for(int i=0; i<num; i++){
-                active.add(deck.remove(0));
+                int c = deck[next++];
+                AddToIndex(c);
+                Place(c);
             }
             return true;
         }
         return false;
     }
     
-    // Fills an empty list with all possible cards and randomizes
-    private void FillAndShuffle(List<Card> deck){
-        for(int i=0; i<81; i++){
-            deck.add(new Card(i));
+    // Fills the deck with all possible cards and randomizes (Fisher-Yates)
+    private void Shuffle(){
+        for(int i=0; i<deck.length; i++){
+            deck[i] = i;
+        }
+        for(int i=deck.length-1; i>0; i--){
+            int j = random.nextInt(i+1);
+            int c = deck[i];
+            deck[i] = deck[j];
+            deck[j] = c;
         }
-        Collections.shuffle(deck);
+        next = 0;
     }
 }
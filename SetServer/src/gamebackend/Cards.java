@@ -0,0 +1,66 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package SetServer.src.gamebackend;
+
+/**
+ * Cards are plain ints 0..80, the base 3 digits being the 4 properties
+ * (card = p0*27 + p1*9 + p2*3 + p3, same numbering the clients use).
+ * Any two different cards complete exactly one set, so validity is a single
+ * lookup in a precomputed 81x81 "third card" table.
+ */
+public final class Cards {
+    public static final int NUM_CARDS = 81;
+    
+    // THIRD[a*81+b] is the card completing the set with a and b
+    private static final byte[] THIRD = new byte[NUM_CARDS*NUM_CARDS];
+    
+    static{
+        for(int a=0; a<NUM_CARDS; a++){
+            for(int b=0; b<NUM_CARDS; b++){
+                int c = 0;
+                for(int p=0, weight=27; p<4; p++, weight/=3){
+                    // each property is all same or all different,
+                    // either way the three values sum to 0 mod 3
+                    c += ((6 - GetProperty(a, p) - GetProperty(b, p))%3)*weight;
+                }
+                THIRD[a*NUM_CARDS+b] = (byte) c;
+            }
+        }
+    }
+    
+    private Cards(){
+    }
+    
+    public static int GetProperty(int card, int pnum){
+        switch(pnum){
+            case 0: return (card/27)%3;
+            case 1: return (card/9)%3;
+            case 2: return (card/3)%3;
+            default: return card%3;
+        }
+    }
+    
+    public static int Third(int a, int b){
+        return THIRD[a*NUM_CARDS+b];
+    }
+    
+    // Three distinct cards forming a set
+    // Ids outside 0..80 are never a set
+    public static boolean IsSet(int a, int b, int c){
+        return IsCard(a) && IsCard(b) && IsCard(c)
+                && a != b && THIRD[a*NUM_CARDS+b] == c;
+    }
+    
+    public static boolean IsCard(int card){
+        return card >= 0 && card < NUM_CARDS;
+    }
+    
+    public static String ToString(int card){
+        return GetProperty(card, 0) + " " + GetProperty(card, 1) + " "
+                + GetProperty(card, 2) + " " + GetProperty(card, 3);
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package SetServer.src.gamebackend;
+
+import java.util.Arrays;
+
+/**
+ * Claims waiting for a room's arbitration window to close
+ * Kept in parallel arrays, so once they have grown to the room's busiest
+ * window queuing a claim allocates nothing. SortByArrival puts them in the
+ * order the server read them, which can differ from the order they were
+ * queued in when they came in on different connection threads
+ */
+public class ClaimQueue {
+  
+  int size;
+  int[] pids = new int[4];
+  int[] cards = new int[12];   // three per claim
+  int[] versions = new int[4];
+  long[] receivedAt = new long[4];
+  
+  public void Add(int pid, int c1, int c2, int c3, int version,
+                  long received) {
+    if (size == pids.length) {
+      pids = Arrays.copyOf(pids, 2 * size);
+      cards = Arrays.copyOf(cards, 6 * size);
+      versions = Arrays.copyOf(versions, 2 * size);
+      receivedAt = Arrays.copyOf(receivedAt, 2 * size);
+    }
+    pids[size] = pid;
+    cards[3 * size] = c1;
+    cards[3 * size + 1] = c2;
+    cards[3 * size + 2] = c3;
+    versions[size] = version;
+    receivedAt[size] = received;
+    ++size;
+  }
+  
+  // Insertion sort, stable so claims read at the same time keep their order
+  // Windows hold a handful of claims, so this beats anything cleverer
+  public void SortByArrival() {
+    for (int i = 1; i < size; ++i) {
+      for (int j = i; j > 0 && receivedAt[j - 1] - receivedAt[j] > 0; --j)
+        Swap(j - 1, j);
+    }
+  }
+  
+  public int GetSize() {
+    return size;
+  }
+  
+  public int GetPid(int i) {
+    return pids[i];
+  }
+  
+  // k-th card (0 to 2) of claim i
+  public int GetCard(int i, int k) {
+    return cards[3 * i + k];
+  }
+  
+  public int GetVersion(int i) {
+    return versions[i];
+  }
+  
+  public void Clear() {
+    size = 0;
+  }
+  
+  // Drops every claim by pid, keeping the others in order
+  public void RemovePid(int pid) {
+    int kept = 0;
+    for (int i = 0; i != size; ++i) {
+      if (pids[i] == pid)
+        continue;
+      if (kept != i) {
+        pids[kept] = pids[i];
+        System.arraycopy(cards, 3 * i, cards, 3 * kept, 3);
+        versions[kept] = versions[i];
+        receivedAt[kept] = receivedAt[i];
+      }
+      ++kept;
+    }
+    size = kept;
+  }
+  
+  private void Swap(int i, int j) {
+    int pid = pids[i];
+    pids[i] = pids[j];
+    pids[j] = pid;
+    for (int k = 0; k != 3; ++k) {
+      int card = cards[3 * i + k];
+      cards[3 * i + k] = cards[3 * j + k];
+      cards[3 * j + k] = card;
+    }
+    int version = versions[i];
+    versions[i] = versions[j];
+    versions[j] = version;
+    long received = receivedAt[i];
+    receivedAt[i] = receivedAt[j];
+    receivedAt[j] = received;
+  }
+}
@@ -0,0 +1,20 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package SetServer.src.gamebackend;
+
+/**
+ * Outcome of a player claiming three cards as a set
+ * ACCEPTED - the cards are a set and were on the table, they were removed
+ * INVALID  - the cards are not a set, the board is unchanged
+ * STALE    - the cards are a set but one of them already left the table,
+ *            the board is unchanged
+ */
+public enum ClaimResult {
+  ACCEPTED,
+  INVALID,
+  STALE
+}
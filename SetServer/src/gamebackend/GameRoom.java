@@ -8,6 +8,7 @@ package SetServer.src.gamebackend;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.SplittableRandom;
 
 /**
  *
@@ -15,26 +16,73 @@ import java.util.List;
  */
 public class GameRoom {
   
+  //every SNAPSHOT_INTERVAL'th board message is a full board, so a client
+  //that missed a delta is back in sync within that many claims
+  static final int SNAPSHOT_INTERVAL = 16;
+  //enough for a full board with a few players, grows if ever needed
+  static final int ENCODER_CAPACITY = 128;
+  
   final List<Player> players;
   int numReady;
-  Board board;
+  Board board; // created by the first game, reset by the ones after
+  final SeededRandom random;
+  long seed;
   Scoring score;
-  int state; // 0 inactive, 1 active, 2 complete
+  //state and numPlayers are volatile so the lobby can list the room from
+  //another lane while its shard plays it
+  volatile int state; // 0 inactive, 1 active, 2 complete
+  volatile int numPlayers;
+  //of the last board message; it only ever goes up, so the version a
+  //claim echoes can't match a board from an earlier game
+  int sequence;
+  int boardVersion; // sequence of the message that last changed the cards
+  //claims waiting for the arbitration window, see SetServer.pSetRequest
+  final ClaimQueue pendingClaims;
+  //0 answers every claim on its own, otherwise the room resolves the
+  //claims of each tick together, see ResolvePendingClaims
+  final long tickNanos;
+  //indices of the players whose score changed in the current batch
+  final int[] scored;
+  int numScored;
   final int maxNumPlayers;
   String name;
+  //reused by every encode; a room is only used by one thread at a time
+  final StringBuilder encoder;
     
   public GameRoom(String name, int maxNumPlayers){
+    this(name, maxNumPlayers, 0);
+  }
+  
+  public GameRoom(String name, int maxNumPlayers, long tickNanos){
     players = new ArrayList<>();
+    this.name = name;
     state = 0;
     numReady = 0;
     this.maxNumPlayers = maxNumPlayers;
+    this.tickNanos = tickNanos;
+    random = new SeededRandom(0);
+    encoder = new StringBuilder(ENCODER_CAPACITY);
+    pendingClaims = new ClaimQueue();
+    scored = new int[Math.max(maxNumPlayers, 1)];
   }
   
   public String InitializeGame() {
-    board = new Board(); //Initialize Board with 12 cards
+    return InitializeGame(new SplittableRandom().nextLong());
+  }
+  
+  //the same seed and the same claims replay the same game
+  public String InitializeGame(long seed) {
+    this.seed = seed;
+    random.setSeed(seed);
+    if (board == null)
+      board = new Board(random); //Initialize Board with 12 cards
+    else
+      board.Reset();
     board.DealUntilSetOrTwelve();
     score = new Scoring(players);
     state = 1;
+    boardVersion = ++sequence;
+    pendingClaims.Clear();
     return encodeBoardToString(board, score, "S");
   }
   
@@ -45,52 +93,233 @@ public class GameRoom {
   }
   
   public String encodeNamesToString() {
-    String ret = "G~U";
-    for (Player p : players)
-      ret += ("~" + p.username + "~" + p.score);
-    return ret;
+    encoder.setLength(0);
+    encoder.append("G~U");
+    for (int i = 0; i != players.size(); ++i) {
+      Player p = players.get(i);
+      encoder.append(p.nameFragment).append(p.score);
+    }
+    return encoder.toString();
   }
   
+  //G~flag~cards~scores~sequence
+  //the cards are listed in slot order, the scores in the players' order
   public String encodeBoardToString(Board b, Scoring s, String flags) {
-    String request = "G";
-    request += "~";
-    request += flags;
-    request += "~";
-    request += b.BoardToString();
-    request += "~";
-    request += s.ScoresToString();
-    return request;
+    encoder.setLength(0);
+    encoder.append("G~").append(flags).append('~');
+    b.AppendTo(encoder);
+    encoder.append('~');
+    s.appendScores(encoder);
+    encoder.append('~').append(sequence);
+    return encoder.toString();
+  }
+  
+  //G~D~flag~sequence~slot card slot card...~player score[ player score...]
+  //what changed since the board message before it: each changed slot with
+  //its new card, -1 if the slot is now empty, and the claiming player's
+  //index in the scores with their new score. Its length depends only on
+  //the number of changed slots, never on the table or the room's size
+  public String encodeDeltaToString(Board b, int pid, String flags) {
+    startDelta(b, flags);
+    int index = indexOf(pid);
+    encoder.append(index).append(' ')
+            .append(index < 0 ? 0 : players.get(index).score);
+    return encoder.toString();
+  }
+  
+  //the delta of a batch lists every player whose score changed in it
+  String encodeBatchDeltaToString(Board b, String flags) {
+    startDelta(b, flags);
+    for (int i = 0; i != numScored; ++i) {
+      if (i != 0)
+        encoder.append(' ');
+      encoder.append(scored[i]).append(' ')
+              .append(players.get(scored[i]).score);
+    }
+    return encoder.toString();
+  }
+  
+  //everything up to and including the '~' before the scores
+  private void startDelta(Board b, String flags) {
+    encoder.setLength(0);
+    encoder.append("G~D~").append(flags).append('~').append(sequence)
+            .append('~');
+    for (int i = 0; i != b.GetNumChanged(); ++i) {
+      int slot = b.GetChangedSlot(i);
+      if (i != 0)
+        encoder.append(' ');
+      encoder.append(slot).append(' ')
+              .append(slot < b.GetNumSlots() ? b.GetCard(slot) : -1);
+    }
+    encoder.append('~');
   }
   
   public Set decodeSetFromString(String c1, String c2, String c3) {
-    return new Set(new Card(Integer.parseInt(c1)),
-            new Card(Integer.parseInt(c2)),
-            new Card(Integer.parseInt(c3)));
+    return new Set(Integer.parseInt(c1),
+            Integer.parseInt(c2),
+            Integer.parseInt(c3));
   }
   
   public String CheckSetAndUpdate(int pid, String c1, String c2, String c3) {
-    Set set = decodeSetFromString(c1, c2, c3);
-    if(board.TestAndRemoveSet(set) == 1){
-      score.addToScore(pid, 3);
-      if(board.DealUntilSetOrTwelve()){
-        return encodeBoardToString(board, score, "Y");
+    return CheckSetAndUpdate(pid, Integer.parseInt(c1),
+            Integer.parseInt(c2), Integer.parseInt(c3));
+  }
+  
+  public String CheckSetAndUpdate(int pid, int c1, int c2, int c3) {
+    return CheckSetAndUpdate(pid, c1, c2, c3, -1);
+  }
+  
+  //version is the sequence of the last board message the player saw, -1 if
+  //the claim doesn't say; a claim made on an outdated board is answered
+  //with flag O and not scored
+  //the game's last board and every SNAPSHOT_INTERVAL'th are sent whole,
+  //the rest as deltas
+  public String CheckSetAndUpdate(int pid, int c1, int c2, int c3,
+                                  int version) {
+    ClaimResult result;
+    if (IsCurrent(version)) {
+      result = Claim(pid, c1, c2, c3);
+    } else {
+      board.ClearChanges();
+      result = ClaimResult.STALE;
+    }
+    ++sequence;
+    String flags;
+    switch(result) {
+      case ACCEPTED:
+        boardVersion = sequence;
+        if(state == 2)
+          return encodeBoardToString(board, score, "F"); // Game over
+        flags = "Y";
+        break;
+      case INVALID:
+        flags = "N";
+        break;
+      default:
+        //The board state changed after this request was sent, so the
+        //player isn't penalized
+        flags = "O";
+        break;
+    }
+    if(sequence % SNAPSHOT_INTERVAL == 0)
+      return encodeBoardToString(board, score, flags);
+    return encodeDeltaToString(board, pid, flags);
+  }
+  
+  //validates the claim once, updates the scores and deals the replacement
+  //cards; board.GetChangedSlot lists the slots that changed
+  //allocates nothing
+  public ClaimResult Claim(int pid, int c1, int c2, int c3) {
+    ClaimResult result = board.Claim(c1, c2, c3);
+    switch(result) {
+      case ACCEPTED:
+        score.addToScore(pid, 3);
+        if(!board.DealUntilSetOrTwelve())
+          state = 2;
+        break;
+      case INVALID:
+        //minus 1 point for wrong set
+        score.subtractFromScore(pid, 1);
+        break;
+      default:
+        break;
+    }
+    return result;
+  }
+  
+  //tick mode: resolves all the pending claims in one pass, in the order
+  //they were read, against the board the players saw. Claims on disjoint
+  //sets are all accepted, a claim whose cards an earlier one took is
+  //stale. Then deals once and answers the whole batch with one message:
+  //flag Y if any claim was accepted, else N if any was invalid, else O
+  public String ResolvePendingClaims() {
+    pendingClaims.SortByArrival();
+    board.ClearChanges();
+    numScored = 0;
+    boolean accepted = false;
+    boolean invalid = false;
+    for (int i = 0; i != pendingClaims.GetSize(); ++i) {
+      int pid = pendingClaims.GetPid(i);
+      if (!IsCurrent(pendingClaims.GetVersion(i)))
+        continue;
+      switch(board.AddClaim(pendingClaims.GetCard(i, 0),
+              pendingClaims.GetCard(i, 1), pendingClaims.GetCard(i, 2))) {
+        case ACCEPTED:
+          score.addToScore(pid, 3);
+          markScored(pid);
+          accepted = true;
+          break;
+        case INVALID:
+          //minus 1 point for wrong set
+          score.subtractFromScore(pid, 1);
+          markScored(pid);
+          invalid = true;
+          break;
+        default:
+          break;
       }
-      else{
+    }
+    pendingClaims.Clear();
+    ++sequence;
+    if (accepted) {
+      boardVersion = sequence;
+      if(!board.DealUntilSetOrTwelve())
         state = 2;
-        return encodeBoardToString(board, score, "F"); // Game over
-      }
     }
-    else if(board.TestAndRemoveSet(set) == 0){
-      //minus 1 point for wrong set
-      score.subtractFromScore(pid, 1);
-      return encodeBoardToString(board, score, "N");
+    String flags = accepted ? "Y" : invalid ? "N" : "O";
+    if(state == 2)
+      return encodeBoardToString(board, score, "F"); // Game over
+    if(sequence % SNAPSHOT_INTERVAL == 0)
+      return encodeBoardToString(board, score, flags);
+    return encodeBatchDeltaToString(board, flags);
+  }
+  
+  private void markScored(int pid) {
+    int index = indexOf(pid);
+    if (index < 0)
+      return;
+    for (int i = 0; i != numScored; ++i) {
+      if (scored[i] == index)
+        return;
     }
-    else{
-      //The board state changed after this request was sent
-      //Shouldn't penailize user not sure how to handle this
-      return encodeBoardToString(board, score, "Y");
+    if (numScored != scored.length)
+      scored[numScored++] = index;
+  }
+  
+  public boolean isTicking() {
+    return tickNanos > 0;
+  }
+  
+  public long getTickNanos() {
+    return tickNanos;
+  }
+  
+  //whether a claim made on board message version sees the cards as they
+  //are now; O(1), the cards themselves are only checked by Claim
+  public boolean IsCurrent(int version) {
+    return version < 0 || (version >= boardVersion && version <= sequence);
+  }
+  
+  public ClaimQueue getPendingClaims() {
+    return pendingClaims;
+  }
+  
+  //index of the player in the scores, -1 if not in the room
+  int indexOf(int pid) {
+    for (int i = 0; i != players.size(); ++i) {
+      if (players.get(i).id == pid)
+        return i;
     }
+    return -1;
+  }
+  
+  public Board getBoard() {
+    return board;
+  }
+  public long getSeed() {
+    return seed;
   }
+  
   public String getName() {
     return name;
   }
@@ -126,8 +355,15 @@ public class GameRoom {
     return pids;
   }
   
+  public int[] getPlayerIdArray() {
+    int[] pids = new int[players.size()];
+    for (int i = 0; i != pids.length; ++i)
+      pids[i] = players.get(i).id;
+    return pids;
+  }
+  
   public int getNumPlayers() {
-    return players.size();
+    return numPlayers;
   }
   
   public boolean isRoomEmpty() {
@@ -137,13 +373,22 @@ public class GameRoom {
   //default score is 0
   public void addPlayer(int id, String username) {
     players.add(new Player(id, username, 0));
+    numPlayers = players.size();
   }
   
-  public void removePlayer(int id) {
+  //false if the player was not in the room
+  //claims the player queued are dropped with them, nobody could be scored
+  //for them
+  public boolean removePlayer(int id) {
     for (int i = 0; i != players.size(); ++i) {
-      if (players.get(i).id == id)
+      if (players.get(i).id == id) {
         players.remove(i);
+        numPlayers = players.size();
+        pendingClaims.RemovePid(id);
+        return true;
+      }
     }
+    return false;
   }
   
   public boolean isInactive() {
@@ -192,21 +437,21 @@ public class GameRoom {
     
     //gr.board.PrintActiveCards();
     
-    int size = gr.board.active.size();
+    int size = gr.board.GetNumActive();
     if(gr.board.TestAndRemoveSet(
-            new Set(new Card(0),new Card(1), new Card(2))) != -1){
+            new Set(0, 1, 2)) != -1){
       System.out.println("Test and remove set for -1 possibly broken");
     }
     if(gr.board.TestAndRemoveSet(
-            new Set(gr.board.active.get(0),
-                    gr.board.active.get(1),
-                    gr.board.active.get(2))) != 0){
+            new Set(gr.board.GetCard(0),
+                    gr.board.GetCard(1),
+                    gr.board.GetCard(2))) != 0){
       System.out.println("Test and remove set for 0 possibly broken");
     }
-    if(gr.board.TestAndRemoveSet(gr.board.ValidSet) != 1){
+    if(gr.board.TestAndRemoveSet(gr.board.FindSet()) != 1){
       System.out.println("Valid Set or TestAndRemove correct broken");
     }
-    if(size != gr.board.active.size() + 3){
+    if(size != gr.board.GetNumActive() + 3){
       System.out.println("Something broken with removing elements");
     }
     
@@ -214,17 +459,69 @@ public class GameRoom {
     gr.board.DealUntilSetOrTwelve();
     
     while(gr.board.DealUntilSetOrTwelve()){
-      gr.board.TestAndRemoveSet(gr.board.ValidSet);
+      gr.board.TestAndRemoveSet(gr.board.FindSet());
       gr.score.addToScore(2, 3);
     }
     
     gr.board.PrintActiveCards();
     
-    //gr.board.TestAndRemoveSet(gr.board.ValidSet);
-    //System.out.println(gr.board.ValidSet);
+    //gr.board.TestAndRemoveSet(gr.board.FindSet());
+    //System.out.println(gr.board.FindSet());
     //gr.board.PrintActiveCards();
     //gr.score.addToScore(1, 3);
     
+    //Arbitration: three players claim the same set in one window, queued in
+    //the reverse of the order they were read, and a fourth claims it on a
+    //board message that has been replaced since. Resolved the way the
+    //server does, the earliest read claim wins and the rest get an O
+    //without losing a point
+    GameRoom arb = new GameRoom("ArbitrationRoom", 4);
+    for (int pid = 1; pid <= 4; ++pid)
+      arb.addPlayer(pid, "Player" + pid);
+    arb.InitializeGame(0);
+    int staleVersion = arb.sequence;
+    int[] cards = new int[3];
+    arb.board.FindSet(cards);
+    arb.CheckSetAndUpdate(1, cards[0], cards[1], cards[2], staleVersion);
+    int[] before = new int[4];
+    for (int i = 0; i != 4; ++i)
+      before[i] = arb.players.get(i).score;
+    int version = arb.sequence;
+    arb.board.FindSet(cards);
+    ClaimQueue claims = arb.getPendingClaims();
+    claims.Add(4, cards[0], cards[1], cards[2], version, 400);
+    claims.Add(3, cards[0], cards[1], cards[2], staleVersion, 300);
+    claims.Add(2, cards[0], cards[1], cards[2], version, 200);
+    claims.Add(1, cards[0], cards[1], cards[2], version, 100);
+    claims.SortByArrival();
+    char[] flags = new char[5];
+    for (int i = 0; i != claims.GetSize(); ++i) {
+      String update = arb.CheckSetAndUpdate(claims.GetPid(i),
+              claims.GetCard(i, 0), claims.GetCard(i, 1),
+              claims.GetCard(i, 2), claims.GetVersion(i));
+      //G~D~flag~... for a delta, G~flag~... for a whole board
+      flags[claims.GetPid(i)] =
+              update.charAt(update.startsWith("G~D~") ? 4 : 2);
+    }
+    claims.Clear();
+    if(flags[1] != 'Y'){
+      System.out.println("Earliest read claim did not win the arbitration");
+    }
+    for (int pid = 2; pid <= 4; ++pid) {
+      if(flags[pid] != 'O'){
+        System.out.println("Player " + pid + " got " + flags[pid]
+                + " instead of O for a lost claim");
+      }
+    }
+    if(arb.players.get(0).score != before[0] + 3){
+      System.out.println("Arbitration winner not scored");
+    }
+    for (int i = 1; i != 4; ++i) {
+      if(arb.players.get(i).score != before[i]){
+        System.out.println("Player " + (i + 1)
+                + " penalized for a lost claim");
+      }
+    }
     
 
   }
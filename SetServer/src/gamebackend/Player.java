@@ -13,11 +13,14 @@ package SetServer.src.gamebackend;
 public class Player {
   public int id;
   String username;
+  //"~username~", what the room's name list writes before the score
+  final String nameFragment;
   public int score;
     
   public Player(int id, String username, int score){
     this.id = id;
     this.username = username;
+    this.nameFragment = "~" + username + "~";
     this.score = score;
   }
     
@@ -45,13 +45,18 @@ public class Scoring {
     
     // Returns the scores of the players in the order of the list
     public String ScoresToString(){
-        String s = "";
+        StringBuilder s = new StringBuilder(4 * players.size());
+        appendScores(s);
+        return s.toString();
+    }
+    
+    // Writes the scores, space separated, without allocating
+    public void appendScores(StringBuilder out){
         for(int i=0; i<players.size(); i++){
-            s += (players.get(i)).score;
-            s += " ";
+            if(i != 0)
+                out.append(' ');
+            out.append(players.get(i).score);
         }
-        s.trim();
-        return s;
     }
     
 }
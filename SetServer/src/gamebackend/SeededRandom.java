@@ -0,0 +1,37 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package SetServer.src.gamebackend;
+
+import java.util.random.RandomGenerator;
+
+/**
+ * SplitMix64 generator that can be reseeded, so a room can reuse one
+ * instance for every game and still replay any game from its seed.
+ * Not thread safe, a room is only touched from its shard.
+ */
+public class SeededRandom implements RandomGenerator {
+  
+  private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+  
+  private long state;
+  
+  public SeededRandom(long seed) {
+    state = seed;
+  }
+  
+  public void setSeed(long seed) {
+    state = seed;
+  }
+  
+  @Override
+  public long nextLong() {
+    long z = (state += GOLDEN_GAMMA);
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    return z ^ (z >>> 31);
+  }
+}
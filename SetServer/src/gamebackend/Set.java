@@ -11,9 +11,9 @@ package SetServer.src.gamebackend;
  * @author David
  */
 public class Set {
-    Card[] cards = new Card[3];
+    int[] cards = new int[3];
     
-    Set(Card c0, Card c1, Card c2){
+    Set(int c0, int c1, int c2){
         cards[0] = c0;
         cards[1] = c1;
         cards[2] = c2;
@@ -22,31 +22,16 @@ public class Set {
     // Checks if the given set is valid
     // Returns true if valid, else returns false
     public boolean CheckIfSetValid(){
-        for(int i=0; i<4; i++){
-            if(!CheckIfPropertyValid(i))
-                return false;
-        }
-        return true;
+        return Cards.IsSet(cards[0], cards[1], cards[2]);
     }
     
-    public Card GetCardNumber(int num){
+    public int GetCardNumber(int num){
         return cards[num];
     }
     
-    // Checks if a property of a set (0-3) is valid across the 3 cards
-    // Returns true if valid, else returns false
-    private boolean CheckIfPropertyValid(int p){
-        int[] v = new int[3];
-        for(int i=0; i<3; i++){
-            v[i] = cards[i].GetPropertyValue(p);
-        }
-        return ((v[0] != v[1]) || (v[1] == v[2]))
-                && ((v[1] != v[2]) || (v[2] == v[0]))
-                && ((v[2] != v[0]) || (v[0] == v[1]));
-    }
-    
     @Override
     public String toString(){
-      return cards[0] + "," + cards[1] + "," + cards[2];
+      return Cards.ToString(cards[0]) + "," + Cards.ToString(cards[1]) + ","
+              + Cards.ToString(cards[2]);
     }
 }